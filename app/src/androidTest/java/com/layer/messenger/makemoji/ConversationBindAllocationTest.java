@@ -0,0 +1,200 @@
+package com.layer.messenger.makemoji;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.ContextThemeWrapper;
+import android.widget.FrameLayout;
+
+import com.layer.atlas.provider.ParticipantProvider;
+import com.layer.atlas.util.AvatarStyle;
+import com.layer.atlas.util.ConversationStyle;
+import com.layer.messenger.App;
+import com.layer.messenger.R;
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.messaging.Conversation;
+import com.layer.sdk.messaging.Message;
+import com.layer.sdk.messaging.MessagePart;
+import com.layer.sdk.messaging.Metadata;
+import com.layer.sdk.query.Query;
+import com.layer.sdk.query.RecyclerViewController;
+import com.squareup.picasso.Picasso;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Enforces that rebinding conversation rows allocates nothing once their titles, avatar
+ * clusters, and MakeMoji previews are cached.  Each conversation's last message is MakeMoji
+ * HTML with an emoji, received today or days ago so both time label paths run.  Layer objects
+ * are mocks, and are only called while rows are snapshotted and warmed up, never during the
+ * measured rebinds.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ConversationBindAllocationTest {
+    private final static int ROWS = 8;
+    private final static int REBINDS = 20;
+    private final static long TIMEOUT_MS = 5000;
+    private final static long DAY_MS = 24 * 60 * 60 * 1000;
+    private final static String HTML = "<p>Hello <img style=\"width:20px;height:20px;vertical-align:text-bottom;\" id=\"1\""
+            + " src=\"https://d1tvcfe0bfyi6u.cloudfront.net/emoji/1-large@2x.png\" name=\"smile\" link=\"\"> there</p>";
+
+    private Instrumentation mInstrumentation;
+    private MakeMojiConversationsAdapter mAdapter;
+    private final List<MakeMojiConversationsAdapter.ViewHolder> mHolders = new ArrayList<MakeMojiConversationsAdapter.ViewHolder>();
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        mInstrumentation = InstrumentationRegistry.getInstrumentation();
+        Context context = new ContextThemeWrapper(InstrumentationRegistry.getTargetContext(), R.style.AppTheme);
+        System.setProperty("dexmaker.dexcache", context.getCacheDir().getPath());
+
+        LayerClient layerClient = mock(LayerClient.class);
+        doReturn("me").when(layerClient).getAuthenticatedUserId();
+        doReturn(mock(RecyclerViewController.class)).when(layerClient)
+                .newRecyclerViewController(any(Query.class), (Collection<String>) any(), any(RecyclerViewController.Callback.class));
+        List<Uri> ids = new ArrayList<Uri>();
+        for (int i = 0; i < ROWS; i++) {
+            Uri id = Uri.parse("layer:///conversations/bind-test-" + i);
+            Conversation conversation = mock(Conversation.class);
+            doReturn(id).when(conversation).getId();
+            doReturn(new HashSet<String>(Arrays.asList("me", "them-" + i))).when(conversation).getParticipants();
+            doReturn(mock(Metadata.class)).when(conversation).getMetadata();
+            doReturn(i % 2).when(conversation).getTotalUnreadMessageCount();
+            Message lastMessage = mockMessage(i, new Date(System.currentTimeMillis() - (i % 2) * 3 * DAY_MS));
+            doReturn(lastMessage).when(conversation).getLastMessage();
+            doReturn(conversation).when(layerClient).getConversation(id);
+            ids.add(id);
+        }
+        doReturn(ids).when(layerClient).executeQuery(any(Query.class), eq(Query.ResultType.IDENTIFIERS));
+
+        mAdapter = new MakeMojiConversationsAdapter(context, layerClient, mock(ParticipantProvider.class), Picasso.with(context));
+        mAdapter.setStyle(new ConversationStyle.Builder().avatarStyle(new AvatarStyle.Builder().build()).build());
+
+        // Snapshot the rows through the adapter's own diff path.
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mAdapter.onQueryDataSetChanged(null);
+            }
+        });
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        while (mAdapter.getItemCount() < ROWS && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(10);
+            mInstrumentation.waitForIdleSync();
+        }
+        assertEquals(ROWS, mAdapter.getItemCount());
+
+        // First binds resolve titles and render avatar clusters.
+        final FrameLayout parent = new FrameLayout(context);
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ROWS; i++) {
+                    MakeMojiConversationsAdapter.ViewHolder holder = mAdapter.onCreateViewHolder(parent, 0);
+                    mAdapter.onBindViewHolder(holder, i);
+                    mHolders.add(holder);
+                }
+            }
+        });
+        AvatarClusterCache clusters = App.getAvatarClusterCache();
+        deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        for (int i = 0; i < ROWS; i++) {
+            String key = AvatarClusterCache.key(AvatarClusterCache.participantsKey(Arrays.asList("them-" + i)), mHolders.get(i).mAvatarSize);
+            while (clusters.get(key) == null && SystemClock.uptimeMillis() < deadline) {
+                SystemClock.sleep(10);
+                mInstrumentation.waitForIdleSync();
+            }
+            assertTrue("Avatar cluster " + i + " rendered", clusters.get(key) != null);
+        }
+
+        MakeMojiPreviewCache previews = App.getMakeMojiPreviewCache();
+        for (int i = 0; i < ROWS; i++) {
+            String key = mHolders.get(i).mPreviewKey;
+            assertTrue("Row " + i + " shows a MakeMoji preview", key != null);
+            while (previews.get(key) == null && SystemClock.uptimeMillis() < deadline) {
+                SystemClock.sleep(10);
+                mInstrumentation.waitForIdleSync();
+            }
+            assertTrue("Preview " + i + " rendered", previews.get(key) != null);
+        }
+    }
+
+    /**
+     * Returns a mocked MakeMoji message whose HTML body is downloaded.
+     */
+    private static Message mockMessage(int i, Date receivedAt) throws UnsupportedEncodingException {
+        final byte[] body = HTML.getBytes("UTF-8");
+        MessagePart part = mock(MessagePart.class);
+        doReturn(MakeMojiCellFactory.MIME_TYPE).when(part).getMimeType();
+        doReturn(true).when(part).isContentReady();
+        doReturn((long) body.length).when(part).getSize();
+        doReturn(body).when(part).getData();
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                return new ByteArrayInputStream(body);
+            }
+        }).when(part).getDataStream();
+
+        Message message = mock(Message.class);
+        doReturn(Uri.parse("layer:///messages/bind-test-" + i)).when(message).getId();
+        doReturn(Collections.singletonList(part)).when(message).getMessageParts();
+        doReturn(receivedAt).when(message).getReceivedAt();
+        doReturn(receivedAt).when(message).getSentAt();
+        return message;
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void rebindAllocatesNothing() {
+        final int[] allocations = new int[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // One untracked pass binds the rendered clusters and previews.
+                rebindAll();
+                Debug.startAllocCounting();
+                Debug.resetThreadAllocCount();
+                for (int r = 0; r < REBINDS; r++) {
+                    rebindAll();
+                }
+                Debug.stopAllocCounting();
+                allocations[0] = Debug.getThreadAllocCount();
+            }
+        });
+        assertEquals("Objects allocated by " + REBINDS * ROWS + " rebinds", 0, allocations[0]);
+    }
+
+    private void rebindAll() {
+        for (int i = 0; i < ROWS; i++) {
+            mAdapter.onBindViewHolder(mHolders.get(i), i);
+        }
+    }
+}
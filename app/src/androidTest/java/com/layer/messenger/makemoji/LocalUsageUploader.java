@@ -0,0 +1,38 @@
+package com.layer.messenger.makemoji;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local stand-in for the MakeMoji usage backend: records the emoji IDs of each uploaded batch,
+ * and accepts or refuses batches as told.
+ */
+public class LocalUsageUploader implements MojiUsageQueue.Uploader {
+    private final LinkedBlockingQueue<List<String>> mBatches = new LinkedBlockingQueue<List<String>>();
+    private volatile boolean mAccepting = true;
+
+    public LocalUsageUploader setAccepting(boolean accepting) {
+        mAccepting = accepting;
+        return this;
+    }
+
+    @Override
+    public boolean upload(List<MojiEmoji> emoji) {
+        List<String> ids = new ArrayList<String>(emoji.size());
+        for (MojiEmoji e : emoji) {
+            ids.add(e.id);
+        }
+        mBatches.add(ids);
+        return mAccepting;
+    }
+
+    /**
+     * Returns the emoji IDs of the next batch passed to upload(), or `null` if none arrives
+     * within the timeout.
+     */
+    public List<String> nextBatch(long timeoutMs) throws InterruptedException {
+        return mBatches.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,112 @@
+package com.layer.messenger.makemoji;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.text.Spanned;
+
+import com.makemoji.mojilib.Moji;
+import com.makemoji.mojilib.MojiSpan;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a message built from its MojiTokens part shows the same text and emoji, in the same
+ * places, as Moji.parseHtml shows for its HTML part, and that styled HTML gets no tokens.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MojiTokensTest {
+    private final static String FIRE = img("1", "fire");
+    private final static String HEART = img("2", "heart");
+
+    private final static String[] UNSTYLED = {
+            "plain words",
+            "<p>so hot " + FIRE + FIRE + " love it " + HEART + "</p>",
+            "<p dir=\"auto\">first</p><p dir=\"auto\">" + HEART + " second &amp; last</p>",
+            "<span style=\"color:#000000;\">one<br>two " + FIRE + "</span>",
+    };
+
+    private static String img(String id, String name) {
+        return "<img style=\"vertical-align:text-bottom;width:20px;height:20px;\" id=\"" + id
+                + "\" src=\"https://example.com/" + name + ".png\" name=\"" + name + "\" link=\"\">";
+    }
+
+    @Test
+    public void tokensMatchHtmlParse() throws IOException {
+        for (String html : UNSTYLED) {
+            byte[] tokens = MojiTokens.encode(html);
+            assertNotNull("Tokens for " + html, tokens);
+            Spanned fromHtml = Moji.parseHtml(html, null, true).spanned;
+            Spanned fromTokens = decode(tokens);
+            assertEquals("Text of " + html, normalize(fromHtml), normalize(fromTokens));
+            assertEquals("Emoji of " + html, spanCount(fromHtml), spanCount(fromTokens));
+        }
+    }
+
+    @Test
+    public void everyEmojiHasItsOwnSpan() throws IOException {
+        Spanned spanned = decode(MojiTokens.encode(FIRE + FIRE + FIRE));
+        MojiSpan[] spans = spanned.getSpans(0, spanned.length(), MojiSpan.class);
+        assertEquals(3, spans.length);
+        assertTrue(spans[0] != spans[1] && spans[1] != spans[2] && spans[0] != spans[2]);
+    }
+
+    @Test
+    public void tokensAreSmaller() throws IOException {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            html.append("so hot ").append(FIRE).append(FIRE).append(" love it ").append(HEART);
+        }
+        assertTrue(MojiTokens.encode(html.toString()).length < html.toString().getBytes("UTF-8").length);
+    }
+
+    @Test
+    public void styledHtmlHasNoTokens() {
+        assertNull(MojiTokens.encode("<p>so <b>bold</b></p>"));
+        assertNull(MojiTokens.encode("<p><a href=\"https://example.com\">link</a></p>"));
+        assertNull(MojiTokens.encode("<span style=\"color:#ff0000;\">red</span><span style=\"color:#0000ff;\">blue</span>"));
+        assertNull(MojiTokens.encode("<p>picture <img src=\"file:///sdcard/a.png\"></p>"));
+    }
+
+    @Test(expected = IOException.class)
+    public void emojiWithoutImageUrlIsRejected() throws IOException {
+        byte[] tokens = MojiTokens.encode(FIRE);
+        // Same length, so only the URL changes
+        String encoded = new String(tokens, "ISO-8859-1").replace("https://", "file:///");
+        decode(encoded.getBytes("ISO-8859-1"));
+    }
+
+    private static Spanned decode(byte[] tokens) throws IOException {
+        return MojiTokens.decode(new DataInputStream(new ByteArrayInputStream(tokens)));
+    }
+
+    /**
+     * Collapses whitespace, which paragraph spacing differs in, and marks where emoji are.
+     */
+    private static String normalize(Spanned spanned) {
+        StringBuilder text = new StringBuilder(spanned.length());
+        for (int i = 0; i < spanned.length(); i++) {
+            char c = spanned.charAt(i);
+            if (spanned.getSpans(i, i + 1, MojiSpan.class).length > 0) {
+                text.append('*');
+            } else if (c == MojiEmoji.PLACEHOLDER) {
+                // An image without a MojiSpan shows nothing
+            } else {
+                text.append(Character.isWhitespace(c) ? ' ' : c);
+            }
+        }
+        return text.toString().replaceAll(" +", " ").trim();
+    }
+
+    private static int spanCount(Spanned spanned) {
+        return spanned.getSpans(0, spanned.length(), MojiSpan.class).length;
+    }
+}
@@ -0,0 +1,169 @@
+package com.layer.messenger.makemoji;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Drives MojiUsageQueue against LocalUsageUploader with a queue file of its own.
+ */
+@RunWith(AndroidJUnit4.class)
+public class MojiUsageQueueTest {
+    private final static long TIMEOUT_MS = 5000;
+    private final static long QUIET_MS = 200;
+
+    private File mFile;
+    private LocalUsageUploader mUploader;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "moji_usage_test.log");
+        mFile.delete();
+        mUploader = new LocalUsageUploader();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void flushUploadsEventsInOrder() throws Exception {
+        MojiUsageQueue queue = new MojiUsageQueue(mFile, mUploader);
+        queue.add(message("a"));
+        queue.add(message("b", "c"));
+        queue.flush();
+        assertEquals(Arrays.asList("a", "b", "c"), mUploader.nextBatch(TIMEOUT_MS));
+        assertFalse("Uploaded events are removed", mFile.exists());
+
+        queue.flush();
+        assertNull("Nothing left to upload", mUploader.nextBatch(QUIET_MS));
+    }
+
+    @Test
+    public void messagesWithoutEmojiAreNotQueued() throws Exception {
+        MojiUsageQueue queue = new MojiUsageQueue(mFile, mUploader);
+        queue.add(null);
+        queue.add("");
+        queue.add("<p>No emoji</p>");
+        queue.add("<p><img src=\"file:///sdcard/a.png\" id=\"x\"></p>");
+        queue.add(message("a"));
+        queue.flush();
+        assertEquals(Arrays.asList("a"), mUploader.nextBatch(TIMEOUT_MS));
+    }
+
+    @Test
+    public void messageTextIsNotStored() throws Exception {
+        MojiUsageQueue queue = new MojiUsageQueue(mFile, mUploader.setAccepting(false));
+        queue.add("<p>secret words " + img("a") + "</p>");
+        queue.flush();
+        assertEquals(Arrays.asList("a"), mUploader.nextBatch(TIMEOUT_MS));
+
+        byte[] stored = new byte[(int) mFile.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(mFile));
+        in.readFully(stored);
+        in.close();
+        assertFalse("Queue holds no message text", new String(stored, "UTF-8").contains("secret"));
+    }
+
+    @Test
+    public void refusedBatchStaysQueued() throws Exception {
+        MojiUsageQueue queue = new MojiUsageQueue(mFile, mUploader.setAccepting(false));
+        queue.add(message("a"));
+        queue.flush();
+        assertEquals(Arrays.asList("a"), mUploader.nextBatch(TIMEOUT_MS));
+
+        mUploader.setAccepting(true);
+        queue.add(message("b"));
+        queue.flush();
+        assertEquals(Arrays.asList("a", "b"), mUploader.nextBatch(TIMEOUT_MS));
+    }
+
+    @Test
+    public void fullBatchFlushesWithoutWaiting() throws Exception {
+        MojiUsageQueue queue = new MojiUsageQueue(mFile, mUploader);
+        for (int i = 0; i < MojiUsageQueue.MAX_BATCH_SIZE; i++) {
+            queue.add(message(String.valueOf(i)));
+        }
+        List<String> batch = mUploader.nextBatch(TIMEOUT_MS);
+        assertEquals(MojiUsageQueue.MAX_BATCH_SIZE, batch.size());
+        assertEquals("0", batch.get(0));
+        assertEquals(String.valueOf(MojiUsageQueue.MAX_BATCH_SIZE - 1), batch.get(MojiUsageQueue.MAX_BATCH_SIZE - 1));
+    }
+
+    @Test
+    public void eventsSurviveANewQueue() throws Exception {
+        MojiUsageQueue first = new MojiUsageQueue(mFile, mUploader.setAccepting(false));
+        first.add(message("a"));
+        first.flush();
+        assertEquals(Arrays.asList("a"), mUploader.nextBatch(TIMEOUT_MS));
+
+        MojiUsageQueue second = new MojiUsageQueue(mFile, mUploader.setAccepting(true));
+        second.flush();
+        assertEquals(Arrays.asList("a"), mUploader.nextBatch(TIMEOUT_MS));
+    }
+
+    @Test
+    public void clearDropsQueuedEvents() throws Exception {
+        MojiUsageQueue queue = new MojiUsageQueue(mFile, mUploader);
+        queue.add(message("a"));
+        queue.clear();
+        queue.flush();
+        assertNull("Cleared events are not uploaded", mUploader.nextBatch(QUIET_MS));
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void damagedTailIsTruncated() throws Exception {
+        MojiUsageQueue writer = new MojiUsageQueue(mFile, mUploader.setAccepting(false));
+        writer.add(message("a"));
+        writer.flush();
+        assertEquals(Arrays.asList("a"), mUploader.nextBatch(TIMEOUT_MS));
+        long good = mFile.length();
+
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile, true));
+        // A length far beyond the end of the file
+        out.writeInt(Integer.MAX_VALUE);
+        out.write(new byte[3]);
+        out.close();
+
+        MojiUsageQueue queue = new MojiUsageQueue(mFile, mUploader);
+        queue.flush();
+        assertEquals(Arrays.asList("a"), mUploader.nextBatch(TIMEOUT_MS));
+        assertFalse("Uploaded events are removed", mFile.exists());
+
+        mUploader.setAccepting(false);
+        queue.add(message("b"));
+        queue.flush();
+        assertEquals(Arrays.asList("b"), mUploader.nextBatch(TIMEOUT_MS));
+        assertEquals("File holds only the new record", good, mFile.length());
+    }
+
+    private static String message(String... ids) {
+        StringBuilder html = new StringBuilder("<p>Hi ");
+        for (String id : ids) {
+            html.append(img(id));
+        }
+        return html.append("</p>").toString();
+    }
+
+    private static String img(String id) {
+        return "<img style=\"width:20px;height:20px;\" id=\"" + id + "\" src=\"https://example.com/" + id + ".png\" name=\"emoji " + id + "\" link=\"\">";
+    }
+}
@@ -2,6 +2,7 @@ package com.layer.messenger;
 
 import android.app.Activity;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 
 import com.layer.atlas.messagetypes.text.TextCellFactory;
@@ -9,12 +10,26 @@ import com.layer.atlas.messagetypes.threepartimage.ThreePartImageUtils;
 import com.layer.atlas.provider.ParticipantProvider;
 import com.layer.atlas.util.Util;
 import com.layer.atlas.util.picasso.requesthandlers.MessagePartRequestHandler;
+import com.layer.messenger.makemoji.AvatarClusterCache;
+import com.layer.messenger.makemoji.ConversationSearchIndex;
+import com.layer.messenger.makemoji.DraftStore;
+import com.layer.messenger.makemoji.HistoricSyncScheduler;
+import com.layer.messenger.makemoji.ImagePreprocessor;
+import com.layer.messenger.makemoji.MakeMojiCellFactory;
+import com.layer.messenger.makemoji.MakeMojiPreviewCache;
+import com.layer.messenger.makemoji.MessageOutbox;
+import com.layer.messenger.makemoji.MojiBitmapPool;
+import com.layer.messenger.makemoji.MojiTokens;
+import com.layer.messenger.makemoji.MojiUsageQueue;
 import com.layer.messenger.util.AuthenticationProvider;
+import com.layer.messenger.util.ConversationTitleCache;
+import com.layer.messenger.util.Log;
 import com.layer.sdk.LayerClient;
 import com.makemoji.mojilib.Moji;
 import com.squareup.picasso.Picasso;
 
 import java.util.Arrays;
+import java.util.Collection;
 
 /**
  * App provides static access to a LayerClient and other Atlas and Messenger context, including
@@ -41,6 +56,15 @@ public class App extends Application {
     private static ParticipantProvider sParticipantProvider;
     private static AuthenticationProvider sAuthProvider;
     private static Picasso sPicasso;
+    private static ConversationTitleCache sConversationTitleCache;
+    private static AvatarClusterCache sAvatarClusterCache;
+    private static ConversationSearchIndex sConversationSearchIndex;
+    private static MojiUsageQueue sMojiUsageQueue;
+    private static MessageOutbox sMessageOutbox;
+    private static DraftStore sDraftStore;
+    private static ImagePreprocessor sImagePreprocessor;
+    private static MakeMojiPreviewCache sMakeMojiPreviewCache;
+    private static HistoricSyncScheduler sHistoricSyncScheduler;
 
 
     //==============================================================================================
@@ -50,6 +74,7 @@ public class App extends Application {
     @Override
     public void onCreate() {
         super.onCreate();
+        installMojiBitmapPool();
         Moji.initialize(this,BuildConfig.MakeMojiKey);
 
         // Enable verbose logging in debug builds
@@ -65,10 +90,36 @@ public class App extends Application {
         sInstance = this;
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        MojiBitmapPool.getInstance(this).trimMemory(level);
+        if (sAvatarClusterCache != null) sAvatarClusterCache.trimMemory(level);
+        // Upload queued emoji usage while the process is still likely to be alive.
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN && sMojiUsageQueue != null) {
+            sMojiUsageQueue.flush();
+        }
+    }
+
     public static Application getInstance() {
         return sInstance;
     }
 
+    /**
+     * MakeMoji spans load their images through the Picasso singleton; give it the shared emoji
+     * pool as its memory cache before Moji initializes.
+     */
+    private void installMojiBitmapPool() {
+        try {
+            Picasso.setSingletonInstance(new Picasso.Builder(this)
+                    .memoryCache(MojiBitmapPool.getInstance(this))
+                    .build());
+        } catch (IllegalStateException e) {
+            // Singleton already created; emoji keep using its default cache.
+            if (Log.isLoggable(Log.WARN)) Log.w("Could not install MojiBitmapPool", e);
+        }
+    }
+
 
     //==============================================================================================
     // Identity Provider Methods
@@ -115,6 +166,13 @@ public class App extends Application {
             @SuppressWarnings("unchecked")
             public void onDeauthenticationSuccess(LayerClient client) {
                 getAuthenticationProvider().setCredentials(null);
+                if (sConversationTitleCache != null) sConversationTitleCache.evictAll();
+                if (sMessageOutbox != null) sMessageOutbox.clear();
+                if (sDraftStore != null) sDraftStore.clear();
+                if (sMakeMojiPreviewCache != null) sMakeMojiPreviewCache.evictAll();
+                if (sMojiUsageQueue != null) sMojiUsageQueue.clear();
+                clearConversationSearchIndex(client);
+                clearHistoricSyncScheduler();
                 callback.onDeauthenticationSuccess(client);
             }
 
@@ -146,9 +204,11 @@ public class App extends Application {
                     /* Fetch the minimum amount per conversation when first authenticated */
                     .historicSyncPolicy(LayerClient.Options.HistoricSyncPolicy.FROM_LAST_MESSAGE)
                     
-                    /* Automatically download text and ThreePartImage info/preview */
+                    /* Automatically download text, deflated and tokenized MakeMoji text, and ThreePartImage info/preview */
                     .autoDownloadMimeTypes(Arrays.asList(
                             TextCellFactory.MIME_TYPE,
+                            MakeMojiCellFactory.MIME_TYPE_DEFLATE,
+                            MojiTokens.MIME_TYPE,
                             ThreePartImageUtils.MIME_TYPE_INFO,
                             ThreePartImageUtils.MIME_TYPE_PREVIEW));
 
@@ -196,6 +256,133 @@ public class App extends Application {
         return sPicasso;
     }
 
+    /**
+     * Returns the shared ConversationTitleCache, registering it for Layer change events the first
+     * time it is created.
+     */
+    public static synchronized ConversationTitleCache getConversationTitleCache() {
+        if (sConversationTitleCache == null) {
+            sConversationTitleCache = new ConversationTitleCache();
+            LayerClient layerClient = getLayerClient();
+            if (layerClient != null) layerClient.registerEventListener(sConversationTitleCache);
+        }
+        return sConversationTitleCache;
+    }
+
+    /**
+     * Called by the flavor's ParticipantProvider when participants are added or updated.
+     *
+     * @param participantIds IDs of the added or updated participants.
+     */
+    public static void onParticipantsUpdated(Collection<String> participantIds) {
+        if (Log.isLoggable(Log.VERBOSE)) Log.v("Participants updated: " + participantIds.size());
+        getConversationTitleCache().onParticipantsUpdated(participantIds);
+        if (sAvatarClusterCache != null) sAvatarClusterCache.onParticipantsUpdated(participantIds);
+    }
+
+    /**
+     * Returns the shared ConversationSearchIndex, registering it for Layer change events the
+     * first time it is created.  Returns `null` if there is no LayerClient yet.
+     */
+    public static synchronized ConversationSearchIndex getConversationSearchIndex() {
+        if (sConversationSearchIndex == null) {
+            LayerClient layerClient = getLayerClient();
+            if (layerClient == null) return null;
+            sConversationSearchIndex = new ConversationSearchIndex(sInstance, layerClient);
+            layerClient.registerEventListener(sConversationSearchIndex);
+        }
+        return sConversationSearchIndex;
+    }
+
+    /**
+     * Deletes the saved search index and drops the shared ConversationSearchIndex, so the next
+     * user's messages are indexed from scratch.
+     */
+    private static synchronized void clearConversationSearchIndex(LayerClient layerClient) {
+        if (sConversationSearchIndex == null) {
+            // Saved by an earlier process
+            ConversationSearchIndex.deleteSaved(sInstance);
+            return;
+        }
+        layerClient.unregisterEventListener(sConversationSearchIndex);
+        sConversationSearchIndex.clear();
+        sConversationSearchIndex.shutdown();
+        sConversationSearchIndex = null;
+    }
+
+    /**
+     * Returns the shared HistoricSyncScheduler, which remembers the conversations it requested
+     * history for until logout.
+     */
+    public static synchronized HistoricSyncScheduler getHistoricSyncScheduler() {
+        if (sHistoricSyncScheduler == null) sHistoricSyncScheduler = new HistoricSyncScheduler(getLayerClient());
+        return sHistoricSyncScheduler;
+    }
+
+    /**
+     * Stops the shared HistoricSyncScheduler, so the next user's conversations are requested
+     * from scratch.
+     */
+    private static synchronized void clearHistoricSyncScheduler() {
+        if (sHistoricSyncScheduler == null) return;
+        sHistoricSyncScheduler.shutdown();
+        sHistoricSyncScheduler = null;
+    }
+
+    public static synchronized AvatarClusterCache getAvatarClusterCache() {
+        if (sAvatarClusterCache == null) {
+            sAvatarClusterCache = new AvatarClusterCache(sInstance, getParticipantProvider(), getPicasso());
+        }
+        return sAvatarClusterCache;
+    }
+
+    /**
+     * Returns the shared MessageOutbox, registering it for Layer connection and authentication
+     * events the first time it is created.  Returns `null` if there is no LayerClient yet.
+     */
+    public static synchronized MessageOutbox getMessageOutbox() {
+        if (sMessageOutbox == null) {
+            LayerClient layerClient = getLayerClient();
+            if (layerClient == null) return null;
+            sMessageOutbox = new MessageOutbox(sInstance, layerClient, getParticipantProvider());
+            layerClient.registerConnectionListener(sMessageOutbox);
+            layerClient.registerAuthenticationListener(sMessageOutbox);
+        }
+        return sMessageOutbox;
+    }
+
+    /**
+     * Returns the shared DraftStore, which starts loading saved drafts in the background when it
+     * is created.  Must be called on the main thread.
+     */
+    public static DraftStore getDraftStore() {
+        if (sDraftStore == null) sDraftStore = new DraftStore(sInstance);
+        return sDraftStore;
+    }
+
+    public static synchronized ImagePreprocessor getImagePreprocessor() {
+        if (sImagePreprocessor == null) sImagePreprocessor = new ImagePreprocessor(sInstance);
+        return sImagePreprocessor;
+    }
+
+    /**
+     * Returns the shared MakeMojiPreviewCache.  Must be called on the main thread.
+     */
+    public static MakeMojiPreviewCache getMakeMojiPreviewCache() {
+        if (sMakeMojiPreviewCache == null) sMakeMojiPreviewCache = new MakeMojiPreviewCache();
+        return sMakeMojiPreviewCache;
+    }
+
+    /**
+     * Returns the shared MojiUsageQueue.  Must first be called on the main thread.
+     */
+    public static synchronized MojiUsageQueue getMojiUsageQueue() {
+        if (sMojiUsageQueue == null) {
+            sMojiUsageQueue = new MojiUsageQueue(sInstance, new MojiUsageQueue.MojiInputLayoutUploader(sInstance));
+        }
+        return sMojiUsageQueue;
+    }
+
     /**
      * Flavor is used by Atlas Messenger to switch environments.
      *
@@ -3,20 +3,29 @@ package com.layer.messenger;
 import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
+import android.support.v4.view.MenuItemCompat;
+import android.support.v7.widget.SearchView;
+import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 
 import com.layer.atlas.AtlasConversationsRecyclerView;
 import com.layer.atlas.adapters.AtlasConversationsAdapter;
 import com.layer.atlas.util.views.SwipeableItem;
+import com.layer.messenger.makemoji.ConversationSearchIndex;
 import com.layer.messenger.makemoji.MakeMojiConversationsAdapter;
 import com.layer.messenger.makemoji.MakeMojiConversationsRecyclerView;
 import com.layer.messenger.util.Log;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.messaging.Conversation;
 
+import java.util.Set;
+
 public class ConversationsListActivity extends BaseActivity {
+    private MakeMojiConversationsRecyclerView mConversationsList;
+
     public ConversationsListActivity() {
         super(R.layout.activity_conversations_list, R.menu.menu_conversations_list, R.string.title_conversations_list, false);
     }
@@ -30,6 +39,7 @@ public class ConversationsListActivity extends BaseActivity {
         }
 
         final MakeMojiConversationsRecyclerView conversationsList = (MakeMojiConversationsRecyclerView) findViewById(R.id.conversations_list);
+        mConversationsList = conversationsList;
 
         // Atlas methods
         conversationsList.init(getLayerClient(), getParticipantProvider(), getPicasso())
@@ -79,6 +89,9 @@ public class ConversationsListActivity extends BaseActivity {
                     }
                 });
 
+        // Start indexing messages for search
+        App.getConversationSearchIndex();
+
         findViewById(R.id.floating_action_button)
                 .setOnClickListener(new View.OnClickListener() {
                     public void onClick(View v) {
@@ -87,6 +100,53 @@ public class ConversationsListActivity extends BaseActivity {
                 });
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mConversationsList != null) mConversationsList.destroy();
+        super.onDestroy();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        super.onCreateOptionsMenu(menu);
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                return onQueryTextChange(query);
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                ConversationSearchIndex index = App.getConversationSearchIndex();
+                if (mConversationsList == null || index == null) return false;
+                index.search(newText, new ConversationSearchIndex.Callback() {
+                    @Override
+                    public void onSearchResult(String query, Set<Uri> conversationIds) {
+                        if (mConversationsList != null) mConversationsList.setFilter(conversationIds);
+                    }
+                });
+                return true;
+            }
+        });
+        MenuItemCompat.setOnActionExpandListener(searchItem, new MenuItemCompat.OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                return true;
+            }
+
+            @Override
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                ConversationSearchIndex index = App.getConversationSearchIndex();
+                if (index != null) index.cancelSearch();
+                if (mConversationsList != null) mConversationsList.setFilter(null);
+                return true;
+            }
+        });
+        return true;
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
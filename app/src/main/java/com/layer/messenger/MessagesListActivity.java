@@ -22,15 +22,14 @@ import com.layer.atlas.messagetypes.generic.GenericCellFactory;
 import com.layer.atlas.messagetypes.location.LocationCellFactory;
 import com.layer.atlas.messagetypes.location.LocationSender;
 import com.layer.atlas.messagetypes.singlepartimage.SinglePartImageCellFactory;
-import com.layer.atlas.messagetypes.text.TextSender;
-import com.layer.atlas.messagetypes.threepartimage.CameraSender;
-import com.layer.atlas.messagetypes.threepartimage.GallerySender;
 import com.layer.atlas.messagetypes.threepartimage.ThreePartImageCellFactory;
 import com.layer.atlas.typingindicators.BubbleTypingIndicatorFactory;
-import com.layer.atlas.util.Util;
 import com.layer.atlas.util.views.SwipeableItem;
+import com.layer.messenger.makemoji.ImageAttachmentSender;
 import com.layer.messenger.makemoji.MakeMojiAtlasComposer;
 import com.layer.messenger.makemoji.MakeMojiCellFactory;
+import com.layer.messenger.makemoji.MakeMojiParsePrefetcher;
+import com.layer.messenger.makemoji.MakeMojiTextSender;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.exceptions.LayerConversationException;
 import com.layer.sdk.messaging.Conversation;
@@ -57,6 +56,7 @@ public class MessagesListActivity extends BaseActivity {
     private AtlasTypingIndicator mTypingIndicator;
     MojiInputLayout mojiInputLayout;
     private MakeMojiAtlasComposer mMessageComposer;
+    private MakeMojiParsePrefetcher mParsePrefetcher;
 
     public MessagesListActivity() {
         super(R.layout.activity_messages_list, R.menu.menu_messages_list, R.string.title_select_conversation, true);
@@ -165,16 +165,18 @@ public class MessagesListActivity extends BaseActivity {
                 .init(getLayerClient())
                 .setHistoricMessagesPerFetch(20);
 
+        MakeMojiCellFactory mojiCellFactory = new MakeMojiCellFactory(this, new HyperMojiListener() {
+            @Override
+            public void onClick(String s) {
+                Toast.makeText(MessagesListActivity.this, "url "+ s,Toast.LENGTH_LONG).show();
+            }
+        });
+
         mMessagesList = ((AtlasMessagesRecyclerView) findViewById(R.id.messages_list))
                 .init(getLayerClient(), getParticipantProvider(), getPicasso())
                 .addCellFactories(
                        // new TextCellFactory(),
-                        new MakeMojiCellFactory(new HyperMojiListener() {
-                            @Override
-                            public void onClick(String s) {
-                                Toast.makeText(MessagesListActivity.this, "url "+ s,Toast.LENGTH_LONG).show();
-                            }
-                        }),
+                        mojiCellFactory,
                         new ThreePartImageCellFactory(this, getLayerClient(), getPicasso()),
                         new LocationCellFactory(this, getPicasso()),
                         new SinglePartImageCellFactory(this, getLayerClient(), getPicasso()),
@@ -208,6 +210,11 @@ public class MessagesListActivity extends BaseActivity {
                     }
                 });
 
+        // Parse MakeMoji HTML off the main thread, ahead of the visible messages
+        mParsePrefetcher = new MakeMojiParsePrefetcher(getLayerClient(), getParticipantProvider(), mojiCellFactory)
+                .setPrefetchWindow(MakeMojiParsePrefetcher.DEFAULT_PREFETCH_WINDOW)
+                .attach(mMessagesList);
+
         mTypingIndicator = new AtlasTypingIndicator(this)
                 .init(getLayerClient())
                 .setTypingIndicatorFactory(new BubbleTypingIndicatorFactory())
@@ -220,10 +227,11 @@ public class MessagesListActivity extends BaseActivity {
 
         mMessageComposer = ((MakeMojiAtlasComposer) findViewById(R.id.message_composer))
                 .init(getLayerClient(), getParticipantProvider())
-                .setTextSender(new TextSender(20000))
+                .setTextSender(new MakeMojiTextSender(20000)
+                        .setSendTokens(true))
                 .addAttachmentSenders(
-                        new CameraSender(R.string.attachment_menu_camera, R.drawable.ic_photo_camera_white_24dp, this),
-                        new GallerySender(R.string.attachment_menu_gallery, R.drawable.ic_photo_white_24dp, this),
+                        new ImageAttachmentSender.Camera(R.string.attachment_menu_camera, R.drawable.ic_photo_camera_white_24dp, this),
+                        new ImageAttachmentSender.Gallery(R.string.attachment_menu_gallery, R.drawable.ic_photo_white_24dp, this),
                         new LocationSender(R.string.attachment_menu_location, R.drawable.ic_place_white_24dp, this))
                 .setOnMessageEditTextFocusChangeListener(new View.OnFocusChangeListener() {
                     @Override
@@ -278,16 +286,23 @@ public class MessagesListActivity extends BaseActivity {
         super.onPause();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mParsePrefetcher != null) mParsePrefetcher.shutdown();
+        super.onDestroy();
+    }
+
     public void setTitle(boolean useConversation) {
         if (!useConversation) {
             setTitle(R.string.title_select_conversation);
         } else {
-            setTitle(Util.getConversationTitle(getLayerClient(), getParticipantProvider(), mConversation));
+            setTitle(App.getConversationTitleCache().get(getLayerClient(), getParticipantProvider(), mConversation));
         }
     }
 
     private void setConversation(Conversation conversation, boolean hideLauncher) {
         mConversation = conversation;
+        mParsePrefetcher.setConversation(conversation);
         mHistoricFetchLayout.setConversation(conversation);
         mMessagesList.setConversation(conversation);
         mTypingIndicator.setConversation(conversation);
@@ -0,0 +1,365 @@
+package com.layer.messenger.makemoji;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Shader;
+import android.graphics.Typeface;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import com.layer.atlas.provider.Participant;
+import com.layer.atlas.provider.ParticipantProvider;
+import com.layer.atlas.util.AvatarStyle;
+import com.layer.atlas.util.Util;
+import com.layer.messenger.util.Log;
+import com.squareup.picasso.Picasso;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rendered avatar clusters for conversation rows, keyed by the sorted participant set and pixel
+ * size.  A cluster is drawn once on a background thread, with initials for participants without
+ * an avatar, so binding a row shows one cached Bitmap instead of resolving participants and
+ * loading one image per member.  Clusters are dropped when one of their participants is updated,
+ * and registered Listeners are told which, so rows showing them can be rebound.
+ * A cluster drawn with initials because an avatar failed to load is only kept for
+ * FALLBACK_TTL_MS, after which it is rendered again.
+ */
+public class AvatarClusterCache {
+    // Share of the app's heap class given to clusters: 1/32, e.g. 1MB of a 32MB class.
+    private final static int MEMORY_CLASS_DIVISOR = 32;
+    // Clusters show at most two avatars, like AtlasAvatar.
+    private final static int MAX_AVATARS = 2;
+    private final static float CLUSTER_SCALE = 0.7f;
+    private final static long FALLBACK_TTL_MS = 60 * 1000;
+
+    private final ParticipantProvider mParticipantProvider;
+    private final Picasso mPicasso;
+    private final LruCache<String, Bitmap> mClusters;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "AvatarCluster");
+        }
+    });
+
+    // Main thread only
+    private final Set<String> mPending = new HashSet<String>();
+    private final Set<Listener> mListeners = new HashSet<Listener>();
+    // Uptime after which a fallback cluster is rendered again
+    private final Map<String, Long> mFallbackExpiry = new HashMap<String, Long>();
+    // Guarded by this
+    private final Map<String, Set<String>> mKeysByParticipant = new HashMap<String, Set<String>>();
+    // Bumped by every participant update; a render that started before one is not cached
+    private final AtomicInteger mGeneration = new AtomicInteger(0);
+
+    /**
+     * A rendered cluster, and whether every avatar image in it loaded.
+     */
+    private static class Rendered {
+        final Bitmap cluster;
+        final boolean complete;
+
+        Rendered(Bitmap cluster, boolean complete) {
+            this.cluster = cluster;
+            this.complete = complete;
+        }
+    }
+
+    public interface Callback {
+        /**
+         * Called on the main thread once a requested cluster is rendered.
+         */
+        void onClusterRendered(String key, Bitmap cluster);
+    }
+
+    public interface Listener {
+        /**
+         * Called on the main thread after the clusters with the given keys were dropped.
+         */
+        void onClustersInvalidated(Collection<String> keys);
+    }
+
+    public AvatarClusterCache(Context context, ParticipantProvider participantProvider, Picasso picasso) {
+        mParticipantProvider = participantProvider;
+        mPicasso = picasso;
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mClusters = new LruCache<String, Bitmap>(am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVISOR) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+    }
+
+    /**
+     * Registers a Listener.  Must be called on the main thread.
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Unregisters a Listener.  Must be called on the main thread.
+     */
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Returns a key for the given participants, independent of their order.
+     */
+    public static String participantsKey(Collection<String> participantIds) {
+        List<String> sorted = new ArrayList<String>(participantIds);
+        Collections.sort(sorted);
+        StringBuilder builder = new StringBuilder();
+        for (String participantId : sorted) {
+            if (builder.length() > 0) builder.append(',');
+            builder.append(participantId);
+        }
+        return builder.toString();
+    }
+
+    public static String key(String participantsKey, int sizePx) {
+        return participantsKey + '@' + sizePx;
+    }
+
+    /**
+     * Returns the cached cluster, or null if it is not rendered or is an expired fallback.  Must
+     * be called on the main thread.
+     */
+    public Bitmap get(String key) {
+        Bitmap cluster = mClusters.get(key);
+        if (cluster == null || mFallbackExpiry.isEmpty()) return cluster;
+        Long expiry = mFallbackExpiry.get(key);
+        if (expiry == null || SystemClock.uptimeMillis() < expiry) return cluster;
+        mFallbackExpiry.remove(key);
+        mClusters.remove(key);
+        return null;
+    }
+
+    /**
+     * Renders the cluster in the background unless it is cached or already pending.  Must be
+     * called on the main thread.
+     *
+     * @param key            Key from key(participantsKey(participantIds), sizePx).
+     * @param participantIds Participants to show.
+     * @param sizePx         Width and height of the cluster.
+     * @param style          Colors for initials and borders.
+     * @param callback       Receives the rendered cluster.
+     */
+    public void request(String key, Set<String> participantIds, int sizePx, AvatarStyle style, Callback callback) {
+        if (get(key) != null || !mPending.add(key)) return;
+        List<String> sorted = new ArrayList<String>(participantIds);
+        Collections.sort(sorted);
+        render(key, sorted, sizePx, style, callback);
+    }
+
+    private void render(final String key, final List<String> sorted, final int sizePx, final AvatarStyle style, final Callback callback) {
+        final int generation = mGeneration.get();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Rendered cluster = null;
+                try {
+                    cluster = render(sorted, sizePx, style);
+                } catch (Exception e) {
+                    if (Log.isLoggable(Log.ERROR)) Log.e("Failed to render avatar cluster " + key, e);
+                }
+                final Rendered rendered = cluster;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (rendered == null) {
+                            mPending.remove(key);
+                            return;
+                        }
+                        if (!store(key, sorted, rendered, generation)) {
+                            // A participant changed while rendering; draw it again.
+                            render(key, sorted, sizePx, style, callback);
+                            return;
+                        }
+                        mPending.remove(key);
+                        callback.onClusterRendered(key, rendered.cluster);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Caches a cluster unless participants were updated since its render started.
+     *
+     * @return false if the cluster is stale.
+     */
+    private synchronized boolean store(String key, List<String> participantIds, Rendered rendered, int generation) {
+        if (generation != mGeneration.get()) return false;
+        for (String participantId : participantIds) {
+            Set<String> keys = mKeysByParticipant.get(participantId);
+            if (keys == null) {
+                keys = new HashSet<String>();
+                mKeysByParticipant.put(participantId, keys);
+            }
+            keys.add(key);
+        }
+        if (rendered.complete) {
+            mFallbackExpiry.remove(key);
+        } else {
+            mFallbackExpiry.put(key, SystemClock.uptimeMillis() + FALLBACK_TTL_MS);
+        }
+        mClusters.put(key, rendered.cluster);
+        return true;
+    }
+
+    /**
+     * Drops every cluster that shows one of the given participants.
+     *
+     * @param participantIds IDs of participants whose names or avatars changed.
+     */
+    public void onParticipantsUpdated(Collection<String> participantIds) {
+        final Set<String> invalidated = new HashSet<String>();
+        synchronized (this) {
+            mGeneration.incrementAndGet();
+            for (String participantId : participantIds) {
+                Set<String> keys = mKeysByParticipant.remove(participantId);
+                if (keys == null) continue;
+                for (String key : keys) {
+                    mClusters.remove(key);
+                }
+                invalidated.addAll(keys);
+            }
+        }
+        if (invalidated.isEmpty()) return;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : mListeners) {
+                    listener.onClustersInvalidated(invalidated);
+                }
+            }
+        });
+    }
+
+    /**
+     * Releases clusters according to a ComponentCallbacks2 trim level.
+     *
+     * @param level Level passed to onTrimMemory.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mClusters.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mClusters.trimToSize(mClusters.maxSize() / 2);
+        }
+    }
+
+
+    //==============================================================================================
+    // Rendering
+    //==============================================================================================
+
+    private Rendered render(List<String> participantIds, int sizePx, AvatarStyle style) {
+        Bitmap cluster = Bitmap.createBitmap(sizePx, sizePx, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(cluster);
+        int count = Math.min(participantIds.size(), MAX_AVATARS);
+        if (count == 0) return new Rendered(cluster, true);
+
+        boolean complete;
+        if (count == 1) {
+            complete = drawAvatar(canvas, participantIds.get(0), 0, 0, sizePx, style);
+        } else {
+            int diameter = Math.round(sizePx * CLUSTER_SCALE);
+            int offset = sizePx - diameter;
+            complete = drawAvatar(canvas, participantIds.get(0), 0, 0, diameter, style);
+            complete &= drawAvatar(canvas, participantIds.get(1), offset, offset, diameter, style);
+        }
+        return new Rendered(cluster, complete);
+    }
+
+    /**
+     * Draws a participant's avatar image, or their initials if they have none.
+     *
+     * @return false if the participant has an avatar that failed to load.
+     */
+    private boolean drawAvatar(Canvas canvas, String participantId, int left, int top, int diameter, AvatarStyle style) {
+        float radius = diameter / 2f;
+        float cx = left + radius;
+        float cy = top + radius;
+
+        Paint border = new Paint(Paint.ANTI_ALIAS_FLAG);
+        border.setColor(style.getAvatarBorderColor());
+        canvas.drawCircle(cx, cy, radius, border);
+        float inner = radius - Math.max(1f, diameter / 32f);
+
+        Participant participant = mParticipantProvider.getParticipant(participantId);
+        Bitmap image = loadImage(participant, diameter);
+        if (image != null) {
+            BitmapShader shader = new BitmapShader(image, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            Matrix matrix = new Matrix();
+            float scale = (float) diameter / Math.min(image.getWidth(), image.getHeight());
+            matrix.setScale(scale, scale);
+            matrix.postTranslate(left, top);
+            shader.setLocalMatrix(matrix);
+            Paint imagePaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+            imagePaint.setShader(shader);
+            canvas.drawCircle(cx, cy, inner, imagePaint);
+            return true;
+        }
+        boolean complete = participant == null || participant.getAvatarUrl() == null;
+
+        Paint background = new Paint(Paint.ANTI_ALIAS_FLAG);
+        background.setColor(style.getAvatarBackgroundColor());
+        canvas.drawCircle(cx, cy, inner, background);
+
+        String initials = participant == null ? null : Util.getInitials(participant);
+        if (initials == null || initials.isEmpty()) return complete;
+        Paint text = new Paint(Paint.ANTI_ALIAS_FLAG);
+        text.setColor(style.getAvatarTextColor());
+        text.setTypeface(Typeface.DEFAULT_BOLD);
+        text.setTextSize(diameter / 2.5f);
+        text.setTextAlign(Paint.Align.CENTER);
+        Rect bounds = new Rect();
+        text.getTextBounds(initials, 0, initials.length(), bounds);
+        canvas.drawText(initials, cx, cy - bounds.exactCenterY(), text);
+        return complete;
+    }
+
+    private Bitmap loadImage(Participant participant, int diameter) {
+        if (participant == null || participant.getAvatarUrl() == null) return null;
+        try {
+            return mPicasso.load(participant.getAvatarUrl()).resize(diameter, diameter).centerCrop().get();
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.VERBOSE)) Log.v("No avatar for " + participant.getId() + ", using initials");
+            return null;
+        }
+    }
+}
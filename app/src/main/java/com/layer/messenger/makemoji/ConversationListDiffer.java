@@ -0,0 +1,353 @@
+package com.layer.messenger.makemoji;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.v7.widget.RecyclerView;
+
+import com.layer.atlas.util.Util;
+import com.layer.sdk.messaging.Conversation;
+import com.layer.sdk.messaging.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Turns two snapshots of the conversation list into the minimal-ish sequence of remove, move,
+ * insert, and change notifications between them.  Diffs are computed on a background thread
+ * and dispatched on the main thread right after the adapter swaps in the new snapshot.
+ */
+class ConversationListDiffer {
+    // Change payload flags, telling a rebind which parts of a row to update
+    static final int CHANGED_UNREAD = 1;
+    static final int CHANGED_LAST_MESSAGE = 1 << 1;
+    static final int CHANGED_TIME = 1 << 2;
+    static final int CHANGED_PARTICIPANTS = 1 << 3;
+    static final int CHANGED_TITLE = 1 << 4;
+    static final int CHANGED_ALL = CHANGED_UNREAD | CHANGED_LAST_MESSAGE | CHANGED_TIME | CHANGED_PARTICIPANTS | CHANGED_TITLE;
+    // More notifications than this are dispatched as one notifyDataSetChanged.
+    static final int MAX_OPS = 64;
+
+    /**
+     * Immutable snapshot of the fields a conversation row displays, captured off the main
+     * thread so two snapshots can be compared.  It also carries everything binding the row
+     * needs, already resolved, so a bind allocates nothing.
+     * <p/>
+     * Rows outside the loaded window are placeholders holding only the conversation ID.
+     */
+    static class Row {
+        final Uri id;
+        final Conversation conversation;
+        final Message lastMessage;
+        final Uri lastMessageId;
+        final long lastMessageReceivedAt;
+        final int unreadCount;
+        final int participantsHash;
+
+        // Participants other than the authenticated user; shared with the previous snapshot's
+        // row while the participants are unchanged.
+        final Set<String> otherParticipantIds;
+        // Order-independent key of otherParticipantIds
+        final String participantsKey;
+        // Avatar cluster cache key, memoized by the adapter on the main thread
+        String avatarKey;
+        // Preview cache key if the last message is a MakeMoji message, else null
+        final String previewKey;
+        // Whether that preview can be rendered yet
+        final boolean previewReady;
+        // Preview text if the last message is not a MakeMoji message, else null
+        final String lastMessageText;
+        // Interned time label, valid while the day start it was made on is current
+        final String timeLabel;
+        final long timeLabelDay;
+
+        /**
+         * Creates a placeholder row for a conversation outside the loaded window.
+         */
+        Row(Uri id) {
+            this.id = id;
+            this.conversation = null;
+            this.lastMessage = null;
+            this.lastMessageId = null;
+            this.lastMessageReceivedAt = 0;
+            this.unreadCount = 0;
+            this.participantsHash = 0;
+            this.otherParticipantIds = Collections.emptySet();
+            this.participantsKey = "";
+            this.previewKey = null;
+            this.previewReady = false;
+            this.lastMessageText = null;
+            this.timeLabel = null;
+            this.timeLabelDay = 0;
+        }
+
+        /**
+         * @param previous Row for the same conversation in the previous snapshot, or null.
+         */
+        Row(Conversation conversation, Row previous, String authenticatedUserId, Context context, ConversationTimeLabels timeLabels) {
+            this.id = conversation.getId();
+            this.conversation = conversation;
+            this.lastMessage = conversation.getLastMessage();
+            this.lastMessageId = lastMessage == null ? null : lastMessage.getId();
+            Date receivedAt = lastMessage == null ? null : lastMessage.getReceivedAt();
+            this.lastMessageReceivedAt = receivedAt == null ? 0 : receivedAt.getTime();
+            Integer unread = conversation.getTotalUnreadMessageCount();
+            this.unreadCount = unread == null ? 0 : unread;
+            Set<String> participants = conversation.getParticipants();
+            this.participantsHash = participants.hashCode();
+
+            if (previous != null && previous.isLoaded() && previous.participantsHash == participantsHash) {
+                this.otherParticipantIds = previous.otherParticipantIds;
+                this.participantsKey = previous.participantsKey;
+                this.avatarKey = previous.avatarKey;
+            } else {
+                Set<String> others = new HashSet<String>(participants);
+                others.remove(authenticatedUserId);
+                this.otherParticipantIds = Collections.unmodifiableSet(others);
+                this.participantsKey = AvatarClusterCache.participantsKey(others);
+            }
+
+            if (lastMessage == null) {
+                this.previewKey = null;
+                this.previewReady = false;
+                this.lastMessageText = null;
+            } else if (MakeMojiCellFactory.isType(lastMessage)) {
+                this.previewKey = MakeMojiPreviewCache.key(id, lastMessage);
+                this.previewReady = MakeMojiPreviewCache.isReady(lastMessage);
+                this.lastMessageText = null;
+            } else {
+                this.previewKey = null;
+                this.previewReady = false;
+                this.lastMessageText = Util.getLastMessageString(context, lastMessage);
+            }
+
+            this.timeLabelDay = timeLabels.today();
+            this.timeLabel = receivedAt == null ? null : timeLabels.get(lastMessageReceivedAt);
+        }
+
+        boolean isLoaded() {
+            return conversation != null;
+        }
+
+        /**
+         * Returns the CHANGED_* flags for the fields that differ from other, or 0.
+         */
+        int changesFrom(Row other) {
+            if (isLoaded() != other.isLoaded()) return CHANGED_ALL;
+            int changes = 0;
+            if (unreadCount != other.unreadCount) changes |= CHANGED_UNREAD;
+            if (lastMessageReceivedAt != other.lastMessageReceivedAt) changes |= CHANGED_TIME;
+            if (participantsHash != other.participantsHash) changes |= CHANGED_PARTICIPANTS | CHANGED_TITLE;
+            if (lastMessageId == null ? other.lastMessageId != null : !lastMessageId.equals(other.lastMessageId)) {
+                changes |= CHANGED_LAST_MESSAGE | CHANGED_TIME;
+            } else if (previewReady != other.previewReady
+                    || (lastMessageText == null ? other.lastMessageText != null : !lastMessageText.equals(other.lastMessageText))) {
+                // Same message, but its content finished downloading
+                changes |= CHANGED_LAST_MESSAGE;
+            }
+            return changes;
+        }
+    }
+
+    /**
+     * Pending notifications for one diff, in dispatch order.  Adjacent removes, inserts, and
+     * equal changes are merged into range notifications; a diff with more than MAX_OPS of them
+     * is dispatched as a single data set change instead.
+     */
+    static class Result {
+        private static final int REMOVE = 0;
+        private static final int INSERT = 1;
+        private static final int MOVE = 2;
+        private static final int CHANGE = 3;
+
+        // {type, position or from, count or to, payload}
+        private final List<int[]> mOps = new ArrayList<int[]>();
+        private final List<Integer> mInserted = new ArrayList<Integer>();
+        private boolean mReset = false;
+
+        private void remove(int position) {
+            int[] last = last(REMOVE);
+            // Removals are added back to front.
+            if (last != null && last[1] == position + 1) {
+                last[1] = position;
+                last[2]++;
+            } else {
+                mOps.add(new int[]{REMOVE, position, 1, 0});
+            }
+        }
+
+        private void insert(int position) {
+            mInserted.add(position);
+            int[] last = last(INSERT);
+            if (last != null && last[1] + last[2] == position) {
+                last[2]++;
+            } else {
+                mOps.add(new int[]{INSERT, position, 1, 0});
+            }
+        }
+
+        private void move(int from, int to) {
+            mOps.add(new int[]{MOVE, from, to, 0});
+        }
+
+        private void change(int position, int changes) {
+            int[] last = last(CHANGE);
+            if (last != null && last[1] + last[2] == position && last[3] == changes) {
+                last[2]++;
+            } else {
+                mOps.add(new int[]{CHANGE, position, 1, changes});
+            }
+        }
+
+        private int[] last(int type) {
+            if (mOps.isEmpty()) return null;
+            int[] last = mOps.get(mOps.size() - 1);
+            return last[0] == type ? last : null;
+        }
+
+        private boolean isOverLimit() {
+            return mOps.size() > MAX_OPS;
+        }
+
+        /**
+         * Replaces the pending notifications with one data set change.
+         */
+        private Result reset() {
+            mOps.clear();
+            mReset = true;
+            return this;
+        }
+
+        boolean isEmpty() {
+            return !mReset && mOps.isEmpty();
+        }
+
+        /**
+         * Final positions of inserted rows.
+         */
+        List<Integer> getInsertedPositions() {
+            return mInserted;
+        }
+
+        void dispatchTo(RecyclerView.Adapter<?> adapter) {
+            if (mReset) {
+                adapter.notifyDataSetChanged();
+                return;
+            }
+            for (int[] op : mOps) {
+                switch (op[0]) {
+                    case REMOVE:
+                        adapter.notifyItemRangeRemoved(op[1], op[2]);
+                        break;
+                    case INSERT:
+                        adapter.notifyItemRangeInserted(op[1], op[2]);
+                        break;
+                    case MOVE:
+                        adapter.notifyItemMoved(op[1], op[2]);
+                        break;
+                    case CHANGE:
+                        adapter.notifyItemRangeChanged(op[1], op[2], op[3]);
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the notifications that turn oldRows into newRows.  Changes carry their CHANGED_*
+     * flags as payload.  Rows whose IDs are in forceChanged are reported with CHANGED_TITLE even
+     * if their captured fields are equal, since their title may come from metadata.
+     * <p/>
+     * Runs in time linear in the row count plus MAX_OPS list edits: diffs that would need more
+     * edits than that, like a first load or a search that replaces most rows, become a reset.
+     */
+    static Result diff(List<Row> oldRows, List<Row> newRows, Set<Uri> forceChanged) {
+        Result result = new Result();
+
+        Map<Uri, Integer> newIndex = new HashMap<Uri, Integer>(newRows.size() * 2);
+        for (int i = 0; i < newRows.size(); i++) newIndex.put(newRows.get(i).id, i);
+
+        Map<Uri, Row> oldById = new HashMap<Uri, Row>(oldRows.size() * 2);
+        for (Row row : oldRows) oldById.put(row.id, row);
+
+        // Whole-list replacements are a single range.
+        if (oldRows.isEmpty() || newRows.isEmpty()) {
+            for (int i = oldRows.size() - 1; i >= 0; i--) result.remove(i);
+            for (int i = 0; i < newRows.size(); i++) result.insert(i);
+            return result;
+        }
+
+        int edits = 0;
+        for (Row row : oldRows) if (!newIndex.containsKey(row.id)) edits++;
+        for (Row row : newRows) if (!oldById.containsKey(row.id)) edits++;
+        if (edits > MAX_OPS) {
+            for (int i = 0; i < newRows.size(); i++) {
+                if (!oldById.containsKey(newRows.get(i).id)) result.mInserted.add(i);
+            }
+            return result.reset();
+        }
+
+        // Removals, back to front so positions stay valid.
+        List<Uri> working = new ArrayList<Uri>(oldRows.size());
+        for (int i = oldRows.size() - 1; i >= 0; i--) {
+            if (!newIndex.containsKey(oldRows.get(i).id)) result.remove(i);
+        }
+        for (Row row : oldRows) {
+            if (newIndex.containsKey(row.id)) working.add(row.id);
+        }
+
+        // Moves and insertions, front to back.  Each row is displaced at most once, which bounds
+        // the loop.
+        Set<Uri> displacedRows = new HashSet<Uri>();
+        int i = 0;
+        while (i < newRows.size()) {
+            Uri target = newRows.get(i).id;
+            if (i < working.size() && working.get(i).equals(target)) {
+                i++;
+                continue;
+            }
+            if (result.isOverLimit()) return result.reset();
+            if (!oldById.containsKey(target)) {
+                working.add(i, target);
+                result.insert(i);
+                i++;
+                continue;
+            }
+            int from = working.indexOf(target);
+            Uri displaced = working.get(i);
+            int displacedTo = Math.min(newIndex.get(displaced), working.size() - 1);
+            if (displacedTo > from && displacedRows.add(displaced)) {
+                // The row in the way travels further than the target; move it instead, so a
+                // single row sinking down the list costs one move.
+                working.remove(i);
+                working.add(displacedTo, displaced);
+                result.move(i, displacedTo);
+            } else {
+                working.remove(from);
+                working.add(i, target);
+                result.move(from, i);
+                i++;
+            }
+        }
+
+        // Content changes, at final positions.
+        for (int p = 0; p < newRows.size(); p++) {
+            Row now = newRows.get(p);
+            Row before = oldById.get(now.id);
+            if (before == null) continue;
+            int changes = now.changesFrom(before);
+            if (forceChanged.contains(now.id)) changes |= CHANGED_TITLE;
+            if (changes != 0) result.change(p, changes);
+        }
+        return result.isOverLimit() ? result.reset() : result;
+    }
+
+    static List<Row> emptyRows() {
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,674 @@
+package com.layer.messenger.makemoji;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.layer.messenger.util.Log;
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.changes.LayerChange;
+import com.layer.sdk.changes.LayerChangeEvent;
+import com.layer.sdk.listeners.LayerChangeEventListener;
+import com.layer.sdk.messaging.Conversation;
+import com.layer.sdk.messaging.LayerObject;
+import com.layer.sdk.messaging.Message;
+import com.layer.sdk.messaging.MessagePart;
+import com.layer.sdk.query.Query;
+import com.layer.sdk.query.SortDescriptor;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * On-device inverted index from message terms to conversation IDs.  MakeMoji HTML is reduced to
+ * its text plus the names of its emoji, so "fire" finds a message showing the fire emoji.  The
+ * index is updated from Layer change events on a background thread and answers prefix queries
+ * on a second background thread.
+ * <p/>
+ * Only the MAX_INDEXED_MESSAGES most recently indexed messages are kept.  Changes are appended
+ * to a log on disk a few seconds after they happen; the log is rewritten only once it holds far
+ * more records than the index has messages.
+ */
+public class ConversationSearchIndex implements LayerChangeEventListener {
+    private final static String FILE_NAME = "conversation_search.idx";
+    private final static int FILE_VERSION = 2;
+    private final static int SAVE_DELAY_SECONDS = 5;
+    private final static int BACKFILL_PAGE_SIZE = 200;
+    private final static int MIN_TERM_LENGTH = 2;
+    private final static int MAX_INDEXED_MESSAGES = 20000;
+    // The log is compacted once it holds this many records per indexed message.
+    private final static int COMPACT_RATIO = 2;
+    private final static int MIN_COMPACT_RECORDS = 1000;
+
+    private final static byte OP_ADD = 1;
+    private final static byte OP_REMOVE_MESSAGE = 2;
+    private final static byte OP_REMOVE_CONVERSATION = 3;
+
+    private final static Pattern EMOJI_NAME = Pattern.compile("<img[^>]*\\bname=\"([^\"]*)\"[^>]*>", Pattern.CASE_INSENSITIVE);
+    private final static Pattern TAG = Pattern.compile("<[^>]*>");
+    private final static Pattern ENTITY = Pattern.compile("&(#?\\w+);");
+
+    public interface Callback {
+        /**
+         * Called on the main thread with the result of the latest search.
+         *
+         * @param query           The query as passed to search().
+         * @param conversationIds Matching conversation IDs, or null for an empty query.
+         */
+        void onSearchResult(String query, Set<Uri> conversationIds);
+    }
+
+    /**
+     * The conversation and distinct terms of an indexed message.
+     */
+    private static class Indexed {
+        final Uri conversationId;
+        final String[] terms;
+
+        Indexed(Uri conversationId, String[] terms) {
+            this.conversationId = conversationId;
+            this.terms = terms;
+        }
+    }
+
+    private final LayerClient mLayerClient;
+    private final File mFile;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(newThreadFactory("SearchIndex"));
+    private final ExecutorService mSearchExecutor = Executors.newSingleThreadExecutor(newThreadFactory("SearchQuery"));
+    private final AtomicInteger mSearchSequence = new AtomicInteger(0);
+
+    // Guarded by this; messages in the order they were indexed, oldest first
+    private final LinkedHashMap<Uri, Indexed> mMessages = new LinkedHashMap<Uri, Indexed>();
+    // Guarded by this; term to IDs of the messages containing it
+    private final TreeMap<String, Set<Uri>> mPostings = new TreeMap<String, Set<Uri>>();
+    // Executor thread only
+    private final List<byte[]> mUnsaved = new ArrayList<byte[]>();
+    private int mSavedRecords = 0;
+    private boolean mSaveScheduled = false;
+    private boolean mCleared = false;
+
+    public ConversationSearchIndex(Context context, LayerClient layerClient) {
+        mLayerClient = layerClient;
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!load()) backfill();
+            }
+        });
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, name);
+            }
+        };
+    }
+
+    /**
+     * Finds the conversations with messages containing every term of the query, each term
+     * matched as a prefix, on a background thread.  Results of a search superseded by a later
+     * one are not delivered.  Must be called on the main thread.
+     *
+     * @param query    Text typed by the user.
+     * @param callback Receives matching conversation IDs, or null for an empty query.
+     */
+    public void search(final String query, final Callback callback) {
+        final int sequence = mSearchSequence.incrementAndGet();
+        mSearchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (sequence != mSearchSequence.get()) return;
+                final Set<Uri> result = find(query);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (sequence == mSearchSequence.get()) callback.onSearchResult(query, result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Drops pending searches, e.g. when the search view closes.  Must be called on the main
+     * thread.
+     */
+    public void cancelSearch() {
+        mSearchSequence.incrementAndGet();
+    }
+
+    private Set<Uri> find(String query) {
+        List<String> terms = new ArrayList<String>();
+        tokenize(query, terms, 1);
+        if (terms.isEmpty()) return null;
+
+        Set<Uri> result = null;
+        synchronized (this) {
+            for (String term : terms) {
+                Set<Uri> matches = new HashSet<Uri>();
+                SortedMap<String, Set<Uri>> prefixed = mPostings.subMap(term, term + Character.MAX_VALUE);
+                for (Set<Uri> messageIds : prefixed.values()) {
+                    for (Uri messageId : messageIds) {
+                        matches.add(mMessages.get(messageId).conversationId);
+                    }
+                }
+                if (result == null) {
+                    result = matches;
+                } else {
+                    result.retainAll(matches);
+                }
+                if (result.isEmpty()) break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forgets every indexed message and deletes the saved index, e.g. when the user logs out.
+     * Nothing is saved afterwards; use a new instance for the next user.
+     */
+    public void clear() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCleared = true;
+                mUnsaved.clear();
+                synchronized (ConversationSearchIndex.this) {
+                    mMessages.clear();
+                    mPostings.clear();
+                }
+                if (!mFile.delete() && mFile.exists() && Log.isLoggable(Log.ERROR)) {
+                    Log.e("Could not delete search index");
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes the saved index when there is no instance to clear().
+     */
+    public static void deleteSaved(Context context) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        if (!file.delete() && file.exists() && Log.isLoggable(Log.ERROR)) Log.e("Could not delete search index");
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+        mSearchExecutor.shutdown();
+    }
+
+
+    //==============================================================================================
+    // Indexing
+    //==============================================================================================
+
+    @Override
+    public void onChangeEvent(LayerChangeEvent event) {
+        for (LayerChange change : event.getChanges()) {
+            final Object object = change.getObject();
+            if (change.getObjectType() == LayerObject.Type.MESSAGE) {
+                if (change.getChangeType() == LayerChange.Type.DELETE) {
+                    final Uri messageId = ((Message) object).getId();
+                    mExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            boolean removed;
+                            synchronized (ConversationSearchIndex.this) {
+                                removed = removeMessage(messageId);
+                            }
+                            if (removed) log(OP_REMOVE_MESSAGE, messageId);
+                        }
+                    });
+                } else {
+                    // Messages are updated when their content finishes downloading.
+                    mExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            index((Message) object, true);
+                        }
+                    });
+                }
+            } else if (change.getObjectType() == LayerObject.Type.CONVERSATION && change.getChangeType() == LayerChange.Type.DELETE) {
+                final Uri conversationId = ((Conversation) object).getId();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (ConversationSearchIndex.this) {
+                            removeConversation(conversationId);
+                        }
+                        log(OP_REMOVE_CONVERSATION, conversationId);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Adds the message's terms to the index.  Returns false if the message was already indexed or
+     * has no text content ready.
+     *
+     * @param log Whether to append the message to the saved index.
+     */
+    private boolean index(Message message, boolean log) {
+        Uri messageId = message.getId();
+        synchronized (this) {
+            if (mMessages.containsKey(messageId)) return false;
+        }
+        if (message.isDeleted()) return false;
+
+        List<String> terms = new ArrayList<String>();
+        boolean ready = true;
+        for (MessagePart part : message.getMessageParts()) {
+            if (!MakeMojiCellFactory.isType(part)) continue;
+            if (!part.isContentReady()) {
+                ready = false;
+                continue;
+            }
+            tokenize(toPlainText(MessagePartText.read(part)), terms, MIN_TERM_LENGTH);
+        }
+        if (!ready) return false;
+
+        Uri conversationId = message.getConversation().getId();
+        Set<String> distinct = new LinkedHashSet<String>(terms);
+        Indexed indexed = new Indexed(conversationId, distinct.toArray(new String[distinct.size()]));
+        synchronized (this) {
+            add(messageId, indexed);
+        }
+        if (log) log(OP_ADD, messageId, indexed);
+        return true;
+    }
+
+    /**
+     * Adds an indexed message, dropping the oldest ones beyond MAX_INDEXED_MESSAGES.  Terms
+     * already in the index share its key Strings.  Callers hold the lock.
+     */
+    private void add(Uri messageId, Indexed indexed) {
+        removeMessage(messageId);
+        String[] terms = indexed.terms;
+        for (int i = 0; i < terms.length; i++) {
+            Map.Entry<String, Set<Uri>> posting = mPostings.ceilingEntry(terms[i]);
+            Set<Uri> messageIds;
+            if (posting != null && posting.getKey().equals(terms[i])) {
+                terms[i] = posting.getKey();
+                messageIds = posting.getValue();
+            } else {
+                messageIds = new HashSet<Uri>(2);
+                mPostings.put(terms[i], messageIds);
+            }
+            messageIds.add(messageId);
+        }
+        mMessages.put(messageId, indexed);
+        Iterator<Uri> oldest = mMessages.keySet().iterator();
+        while (mMessages.size() > MAX_INDEXED_MESSAGES) {
+            Uri evicted = oldest.next();
+            Indexed evictedTerms = mMessages.get(evicted);
+            oldest.remove();
+            removePostings(evicted, evictedTerms);
+        }
+    }
+
+    /**
+     * Removes a message from the index.  Callers hold the lock.
+     *
+     * @return false if the message was not indexed.
+     */
+    private boolean removeMessage(Uri messageId) {
+        Indexed indexed = mMessages.remove(messageId);
+        if (indexed == null) return false;
+        removePostings(messageId, indexed);
+        return true;
+    }
+
+    /**
+     * Removes every message of a conversation from the index.  Callers hold the lock.
+     */
+    private void removeConversation(Uri conversationId) {
+        Iterator<Map.Entry<Uri, Indexed>> messages = mMessages.entrySet().iterator();
+        while (messages.hasNext()) {
+            Map.Entry<Uri, Indexed> message = messages.next();
+            if (!message.getValue().conversationId.equals(conversationId)) continue;
+            messages.remove();
+            removePostings(message.getKey(), message.getValue());
+        }
+    }
+
+    private void removePostings(Uri messageId, Indexed indexed) {
+        for (String term : indexed.terms) {
+            Set<Uri> messageIds = mPostings.get(term);
+            if (messageIds != null && messageIds.remove(messageId) && messageIds.isEmpty()) mPostings.remove(term);
+        }
+    }
+
+    /**
+     * Indexes existing messages page by page when there is no saved index yet, oldest received
+     * first across all conversations, so the most recent messages are the ones kept within
+     * MAX_INDEXED_MESSAGES.  Messages arriving meanwhile sort after the pages read so far.
+     */
+    private void backfill() {
+        long start = System.currentTimeMillis();
+        int offset = 0;
+        int indexed = 0;
+        while (!mCleared) {
+            Query<Message> query = Query.builder(Message.class)
+                    .sortDescriptor(new SortDescriptor(Message.Property.RECEIVED_AT, SortDescriptor.Order.ASCENDING))
+                    .offset(offset)
+                    .limit(BACKFILL_PAGE_SIZE)
+                    .build();
+            List page = mLayerClient.executeQueryForObjects(query);
+            if (page == null || page.isEmpty()) break;
+            for (Object message : page) {
+                if (index((Message) message, false)) indexed++;
+            }
+            offset += page.size();
+        }
+        if (Log.isLoggable(Log.VERBOSE)) {
+            Log.v("Search index backfilled " + indexed + " messages in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        compact();
+    }
+
+
+    //==============================================================================================
+    // Text
+    //==============================================================================================
+
+    /**
+     * Reduces MakeMoji HTML to plain text, replacing each emoji image with its name.
+     */
+    static String toPlainText(String html) {
+        if (html.indexOf('<') < 0 && html.indexOf('&') < 0) return html;
+        String text = EMOJI_NAME.matcher(html).replaceAll(" $1 ");
+        text = TAG.matcher(text).replaceAll(" ");
+        Matcher entities = ENTITY.matcher(text);
+        StringBuffer decoded = new StringBuffer(text.length());
+        while (entities.find()) {
+            entities.appendReplacement(decoded, Matcher.quoteReplacement(decodeEntity(entities.group(1))));
+        }
+        entities.appendTail(decoded);
+        return decoded.toString();
+    }
+
+    static String decodeEntity(String entity) {
+        if (entity.equals("amp")) return "&";
+        if (entity.equals("lt")) return "<";
+        if (entity.equals("gt")) return ">";
+        if (entity.equals("quot")) return "\"";
+        if (entity.equals("apos")) return "'";
+        if (entity.startsWith("#")) {
+            try {
+                boolean hex = entity.length() > 1 && (entity.charAt(1) == 'x' || entity.charAt(1) == 'X');
+                int codePoint = Integer.parseInt(entity.substring(hex ? 2 : 1), hex ? 16 : 10);
+                return new String(Character.toChars(codePoint));
+            } catch (IllegalArgumentException e) {
+                return " ";
+            }
+        }
+        return " ";
+    }
+
+    /**
+     * Splits text into lower-case runs of letters and digits of at least minLength characters.
+     */
+    static void tokenize(String text, List<String> terms, int minLength) {
+        if (text == null) return;
+        int length = text.length();
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean word = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (i - start >= minLength) terms.add(text.substring(start, i).toLowerCase(Locale.US));
+                start = -1;
+            }
+        }
+    }
+
+
+    //==============================================================================================
+    // Persistence
+    //==============================================================================================
+
+    /**
+     * Queues a record for the next save.
+     */
+    private void log(byte op, Uri id, Indexed indexed) {
+        if (mCleared) return;
+        byte[] record = record(op, id, indexed);
+        if (record == null) return;
+        mUnsaved.add(record);
+        scheduleSave();
+    }
+
+    private void log(byte op, Uri id) {
+        log(op, id, null);
+    }
+
+    /**
+     * Serializes a change, or returns null if it cannot be saved.
+     */
+    private static byte[] record(byte op, Uri id, Indexed indexed) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(op);
+            out.writeUTF(id.toString());
+            if (op == OP_ADD) {
+                out.writeUTF(indexed.conversationId.toString());
+                out.writeInt(indexed.terms.length);
+                for (String term : indexed.terms) out.writeUTF(term);
+            }
+        } catch (IOException e) {
+            // Only thrown for a string too long for writeUTF
+            if (Log.isLoggable(Log.WARN)) Log.w("Could not log search index change for " + id, e);
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    private void scheduleSave() {
+        if (mSaveScheduled) return;
+        mSaveScheduled = true;
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mSaveScheduled = false;
+                save();
+            }
+        }, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Appends unsaved records to the log, or compacts it once it is mostly superseded records.
+     */
+    private void save() {
+        if (mCleared || mUnsaved.isEmpty()) return;
+        int live;
+        synchronized (this) {
+            live = mMessages.size();
+        }
+        int records = mSavedRecords + mUnsaved.size();
+        if (!mFile.exists() || (records > MIN_COMPACT_RECORDS && records > live * COMPACT_RATIO)) {
+            compact();
+            return;
+        }
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+            for (byte[] record : mUnsaved) writeRecord(out, record);
+            out.close();
+            out = null;
+            mSavedRecords = records;
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Could not save search index", e);
+        } finally {
+            close(out);
+        }
+        // On failure the records are dropped; a partial record is truncated by the next load.
+        mUnsaved.clear();
+    }
+
+    /**
+     * Writes one record per indexed message to a temporary file and renames it over the log.
+     */
+    private void compact() {
+        if (mCleared) return;
+        Map<Uri, Indexed> messages;
+        synchronized (this) {
+            messages = new LinkedHashMap<Uri, Indexed>(mMessages);
+        }
+        // Everything unsaved is part of the snapshot.
+        mUnsaved.clear();
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FILE_VERSION);
+            int records = 0;
+            for (Map.Entry<Uri, Indexed> message : messages.entrySet()) {
+                byte[] record = record(OP_ADD, message.getKey(), message.getValue());
+                if (record == null) continue;
+                writeRecord(out, record);
+                records++;
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(mFile)) throw new IOException("Could not rename " + temp);
+            mSavedRecords = records;
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Could not save search index", e);
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        out.writeInt(record.length);
+        out.write(record);
+    }
+
+    /**
+     * Replays the saved log.  A record cut short by process death, or with a length beyond the
+     * end of the file, ends the log; the file is truncated after the last good record so later
+     * appends follow it.  Returns false if there is no usable log.
+     */
+    private boolean load() {
+        if (!mFile.exists()) return false;
+        LogInputStream in = null;
+        long good = 0;
+        int records = 0;
+        boolean ended = false;
+        try {
+            in = LogInputStream.open(mFile);
+            if (in.readInt() != FILE_VERSION) {
+                close(in);
+                mFile.delete();
+                return false;
+            }
+            good = in.position();
+            while (true) {
+                if (!replay(in.readBytes())) break;
+                good = in.position();
+                records++;
+            }
+            ended = true;
+        } catch (EOFException e) {
+            ended = true;
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Could not load search index", e);
+        } finally {
+            close(in);
+        }
+        if (good == 0) {
+            mFile.delete();
+            return false;
+        }
+        if (ended) in.truncate(good);
+        mSavedRecords = records;
+        return true;
+    }
+
+    /**
+     * Applies one saved record to the index.  Returns false if it is malformed.
+     */
+    private boolean replay(byte[] record) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        try {
+            byte op = in.readByte();
+            Uri id = Uri.parse(in.readUTF());
+            if (op == OP_ADD) {
+                Uri conversationId = Uri.parse(in.readUTF());
+                int count = in.readInt();
+                // Every term takes at least two bytes
+                if (count < 0 || count > record.length / 2) return false;
+                String[] terms = new String[count];
+                for (int i = 0; i < count; i++) terms[i] = in.readUTF();
+                synchronized (this) {
+                    add(id, new Indexed(conversationId, terms));
+                }
+            } else if (op == OP_REMOVE_MESSAGE) {
+                synchronized (this) {
+                    removeMessage(id);
+                }
+            } else if (op == OP_REMOVE_CONVERSATION) {
+                synchronized (this) {
+                    removeConversation(id);
+                }
+            } else {
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+}
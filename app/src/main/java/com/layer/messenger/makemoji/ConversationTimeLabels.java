@@ -0,0 +1,78 @@
+package com.layer.messenger.makemoji;
+
+import android.content.Context;
+import android.support.v4.util.LongSparseArray;
+
+import com.layer.atlas.util.Util;
+
+import java.text.DateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Interned last-message time labels for conversation rows.  Today's times share one String per
+ * minute and older times one String per day, so rows showing the same label share an instance
+ * and binding a row formats nothing.  Labels are dropped when the day rolls over, since "today"
+ * and "yesterday" labels change meaning.
+ */
+class ConversationTimeLabels {
+    private final static long MINUTE = 60 * 1000;
+    private final static long DAY = 24 * 60 * MINUTE;
+
+    private final Context mContext;
+    private final DateFormat mDateFormat;
+    private final DateFormat mTimeFormat;
+
+    // Guarded by this
+    private final LongSparseArray<String> mMinuteLabels = new LongSparseArray<String>();
+    private final LongSparseArray<String> mDayLabels = new LongSparseArray<String>();
+    private long mDayStart = Long.MIN_VALUE;
+    private long mNextDayStart = Long.MIN_VALUE;
+
+    ConversationTimeLabels(Context context) {
+        mContext = context.getApplicationContext();
+        mDateFormat = android.text.format.DateFormat.getDateFormat(mContext);
+        mTimeFormat = android.text.format.DateFormat.getTimeFormat(mContext);
+    }
+
+    /**
+     * Returns the start of the current local day; labels obtained before it changes are stale.
+     */
+    synchronized long today() {
+        roll();
+        return mDayStart;
+    }
+
+    /**
+     * Returns the label for a last-message time in milliseconds.
+     */
+    synchronized String get(long time) {
+        roll();
+        boolean isToday = time >= mDayStart;
+        LongSparseArray<String> labels = isToday ? mMinuteLabels : mDayLabels;
+        long bucket = isToday ? time / MINUTE : (time + TimeZone.getDefault().getOffset(time)) / DAY;
+        String label = labels.get(bucket);
+        if (label == null) {
+            label = Util.formatTime(mContext, new Date(time), mTimeFormat, mDateFormat);
+            labels.put(bucket, label);
+        }
+        return label;
+    }
+
+    private void roll() {
+        long now = System.currentTimeMillis();
+        if (now >= mDayStart && now < mNextDayStart) return;
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(now);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        mDayStart = calendar.getTimeInMillis();
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        mNextDayStart = calendar.getTimeInMillis();
+        mMinuteLabels.clear();
+        mDayLabels.clear();
+    }
+}
@@ -0,0 +1,297 @@
+package com.layer.messenger.makemoji;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+
+import com.layer.messenger.util.Log;
+import com.makemoji.mojilib.Moji;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Composer drafts keyed by conversation ID.  Drafts are kept in memory for instant restores and
+ * persisted in the background to an append-only log of put and remove records, written at most
+ * once per SAVE_DELAY_MS and compacted once most of its records are superseded.  The log is read
+ * and its MakeMoji HTML parsed in the background when the store is created; drafts requested
+ * before that finishes are delivered once it does.
+ * <p/>
+ * Must be used on the main thread.
+ */
+public class DraftStore {
+    private final static String FILE_NAME = "drafts.log";
+    private final static long SAVE_DELAY_MS = 1000;
+    // Compact once the log holds this many records and more than twice the live drafts.
+    private final static int COMPACT_MIN_RECORDS = 64;
+    private final static byte OP_PUT = 1;
+    private final static byte OP_REMOVE = 2;
+
+    public interface Callback {
+        /**
+         * Called on the main thread with the conversation's draft, or `null` if it has none.
+         */
+        void onDraft(Uri conversationId, CharSequence draft);
+    }
+
+    private final File mFile;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "Drafts");
+        }
+    });
+
+    // Main thread only
+    private final Map<Uri, CharSequence> mDrafts = new HashMap<Uri, CharSequence>();
+    private Map<Uri, CharSequence> mDirty = new LinkedHashMap<Uri, CharSequence>();
+    private final List<Uri> mWaitingIds = new ArrayList<Uri>();
+    private final List<Callback> mWaitingCallbacks = new ArrayList<Callback>();
+    private boolean mLoaded = false;
+
+    // Executor thread only
+    private final Map<Uri, String> mSaved = new HashMap<Uri, String>();
+    private int mRecords = 0;
+
+    private final Runnable mSave = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+    public DraftStore(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Delivers the conversation's draft to the callback, immediately once the store is loaded.
+     */
+    public void get(Uri conversationId, Callback callback) {
+        if (mLoaded) {
+            callback.onDraft(conversationId, mDrafts.get(conversationId));
+            return;
+        }
+        mWaitingIds.add(conversationId);
+        mWaitingCallbacks.add(callback);
+    }
+
+    /**
+     * Stores a copy of the conversation's draft, removing it if the text is empty.
+     */
+    public void put(Uri conversationId, CharSequence text) {
+        CharSequence draft = (text == null || text.length() == 0) ? null : new SpannableStringBuilder(text);
+        if (draft == null && !mDrafts.containsKey(conversationId) && !mDirty.containsKey(conversationId)) return;
+        if (draft == null) {
+            mDrafts.remove(conversationId);
+        } else {
+            mDrafts.put(conversationId, draft);
+        }
+        mDirty.put(conversationId, draft);
+        mMainHandler.removeCallbacks(mSave);
+        mMainHandler.postDelayed(mSave, SAVE_DELAY_MS);
+    }
+
+    /**
+     * Starts writing pending changes now instead of after the save delay.
+     */
+    public void flush() {
+        mMainHandler.removeCallbacks(mSave);
+        save();
+    }
+
+    /**
+     * Drops all drafts, e.g. when the user logs out.
+     */
+    public void clear() {
+        mMainHandler.removeCallbacks(mSave);
+        mDrafts.clear();
+        mDirty.clear();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSaved.clear();
+                mRecords = 0;
+                if (!mFile.delete() && mFile.exists() && Log.isLoggable(Log.ERROR)) {
+                    Log.e("Could not clear drafts");
+                }
+            }
+        });
+    }
+
+    private void save() {
+        if (mDirty.isEmpty()) return;
+        final Map<Uri, CharSequence> dirty = mDirty;
+        mDirty = new LinkedHashMap<Uri, CharSequence>();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(dirty);
+            }
+        });
+    }
+
+
+    //==============================================================================================
+    // Persistence (executor thread)
+    //==============================================================================================
+
+    private void load() {
+        if (mFile.exists()) {
+            LogInputStream in = null;
+            long good = 0;
+            boolean ended = false;
+            try {
+                in = LogInputStream.open(mFile);
+                while (true) {
+                    byte op = in.readByte();
+                    Uri conversationId = Uri.parse(in.readUTF());
+                    if (op == OP_PUT) {
+                        mSaved.put(conversationId, new String(in.readBytes(), "UTF-8"));
+                    } else if (op == OP_REMOVE) {
+                        mSaved.remove(conversationId);
+                    } else {
+                        throw new EOFException("Unknown draft record " + op);
+                    }
+                    mRecords++;
+                    good = in.position();
+                }
+            } catch (EOFException e) {
+                // End of the log, or a damaged trailing record; later records go after the last good one.
+                ended = true;
+            } catch (IOException e) {
+                if (Log.isLoggable(Log.ERROR)) Log.e("Could not read drafts", e);
+            } finally {
+                close(in);
+            }
+            if (ended) in.truncate(good);
+        }
+
+        final Map<Uri, CharSequence> loaded = new HashMap<Uri, CharSequence>();
+        for (Map.Entry<Uri, String> entry : mSaved.entrySet()) {
+            loaded.put(entry.getKey(), Moji.parseHtml(entry.getValue(), null, true).spanned);
+        }
+        if (Log.isLoggable(Log.VERBOSE)) Log.v("Loaded " + loaded.size() + " drafts from " + mRecords + " records");
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Drafts edited while loading are newer than the log.
+                for (Map.Entry<Uri, CharSequence> entry : loaded.entrySet()) {
+                    if (mDrafts.containsKey(entry.getKey()) || mDirty.containsKey(entry.getKey())) continue;
+                    mDrafts.put(entry.getKey(), entry.getValue());
+                }
+                mLoaded = true;
+                for (int i = 0; i < mWaitingIds.size(); i++) {
+                    Uri conversationId = mWaitingIds.get(i);
+                    mWaitingCallbacks.get(i).onDraft(conversationId, mDrafts.get(conversationId));
+                }
+                mWaitingIds.clear();
+                mWaitingCallbacks.clear();
+            }
+        });
+    }
+
+    private void write(Map<Uri, CharSequence> dirty) {
+        DataOutputStream out = null;
+        try {
+            FileOutputStream file = new FileOutputStream(mFile, true);
+            out = new DataOutputStream(new BufferedOutputStream(file));
+            for (Map.Entry<Uri, CharSequence> entry : dirty.entrySet()) {
+                Uri conversationId = entry.getKey();
+                if (entry.getValue() == null) {
+                    if (mSaved.remove(conversationId) == null) continue;
+                    out.writeByte(OP_REMOVE);
+                    out.writeUTF(conversationId.toString());
+                } else {
+                    String html = Moji.toHtml((Spanned) entry.getValue());
+                    if (html.equals(mSaved.get(conversationId))) continue;
+                    mSaved.put(conversationId, html);
+                    out.writeByte(OP_PUT);
+                    out.writeUTF(conversationId.toString());
+                    writeString(out, html);
+                }
+                mRecords++;
+            }
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Could not save drafts", e);
+        } finally {
+            close(out);
+        }
+        if (mRecords > COMPACT_MIN_RECORDS && mRecords > mSaved.size() * 2) compact();
+    }
+
+    /**
+     * Rewrites the log with one put record per live draft, via a temporary file.
+     */
+    private void compact() {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream file = new FileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(file));
+            for (Map.Entry<Uri, String> entry : mSaved.entrySet()) {
+                out.writeByte(OP_PUT);
+                out.writeUTF(entry.getKey().toString());
+                writeString(out, entry.getValue());
+            }
+            out.flush();
+            file.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) throw new IOException("Could not rename " + tmp);
+            if (Log.isLoggable(Log.VERBOSE)) Log.v("Compacted drafts from " + mRecords + " to " + mSaved.size() + " records");
+            mRecords = mSaved.size();
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Could not compact drafts", e);
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+}
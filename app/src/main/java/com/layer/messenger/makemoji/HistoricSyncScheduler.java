@@ -0,0 +1,213 @@
+package com.layer.messenger.makemoji;
+
+import android.net.Uri;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.layer.messenger.util.Log;
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.messaging.Conversation;
+import com.layer.sdk.messaging.Message;
+import com.layer.sdk.query.Predicate;
+import com.layer.sdk.query.Query;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Requests initial message history for conversations on one background thread.  Each
+ * conversation is requested at most once, overlapping requests are coalesced, and
+ * conversations that are on screen jump ahead of those that are not.  Queued conversations
+ * are planned in batches of up to BATCH_SIZE, with one local count query per conversation that
+ * still has history to fetch.
+ * <p/>
+ * One instance is shared through App.getHistoricSyncScheduler(), so conversations requested by
+ * one conversation list are not requested again by the next.
+ */
+public class HistoricSyncScheduler {
+    // About one screen of conversation rows per planning pass.
+    private final static int BATCH_SIZE = 16;
+    // Conversations whose sync status was undecided are not re-queued for this long.
+    private final static long RETRY_DELAY_MS = 30 * 1000;
+
+    private final LayerClient mLayerClient;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "HistoricSync");
+        }
+    });
+
+    // Guarded by this
+    private final Deque<Uri> mQueue = new ArrayDeque<Uri>();
+    private final Map<Uri, Conversation> mQueued = new HashMap<Uri, Conversation>();
+    // Requested or fully synced
+    private final Set<Uri> mRequested = new HashSet<Uri>();
+    // Undecided conversations, and the uptime after which they may be queued again
+    private final Map<Uri, Long> mRetryAt = new HashMap<Uri, Long>();
+    private boolean mDraining = false;
+    private long mDesiredHistory = 0;
+
+    public HistoricSyncScheduler(LayerClient layerClient) {
+        mLayerClient = layerClient;
+    }
+
+    /**
+     * Sets how many messages each conversation should have locally after its initial sync.
+     * Zero or less disables initial history requests.
+     */
+    public synchronized void setDesiredHistory(long desiredHistory) {
+        mDesiredHistory = desiredHistory;
+    }
+
+    /**
+     * Queues a conversation for an initial history request.  Conversations already requested,
+     * fully synced, queued, or recently found undecided are skipped; a visible conversation
+     * moves to the front of the queue.
+     *
+     * @param id           ID of the conversation, so the check for an already requested
+     *                     conversation doesn't call into it.
+     * @param conversation Conversation to request history for.
+     * @param visible      Whether the conversation is currently on screen.
+     */
+    public synchronized void request(Uri id, Conversation conversation, boolean visible) {
+        if (conversation == null || mDesiredHistory <= 0) return;
+        if (mRequested.contains(id)) return;
+        Long retryAt = mRetryAt.get(id);
+        if (retryAt != null && SystemClock.uptimeMillis() < retryAt) return;
+        if (mQueued.containsKey(id)) {
+            if (!visible) return;
+            mQueue.remove(id);
+        }
+        mQueued.put(id, conversation);
+        if (visible) {
+            mQueue.addFirst(id);
+        } else {
+            mQueue.addLast(id);
+        }
+        if (!mDraining) {
+            mDraining = true;
+            mExecutor.execute(mDrain);
+        }
+    }
+
+    /**
+     * Takes up to BATCH_SIZE conversations from the front of the queue, or returns an empty list
+     * and ends the drain when the queue is empty.
+     */
+    private synchronized List<Conversation> nextBatch() {
+        List<Conversation> batch = new ArrayList<Conversation>(Math.min(BATCH_SIZE, mQueue.size()));
+        Uri id;
+        while (batch.size() < BATCH_SIZE && (id = mQueue.pollFirst()) != null) {
+            mRequested.add(id);
+            mRetryAt.remove(id);
+            batch.add(mQueued.remove(id));
+        }
+        if (batch.isEmpty()) mDraining = false;
+        return batch;
+    }
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            List<Conversation> batch;
+            while (!(batch = nextBatch()).isEmpty()) {
+                try {
+                    sync(batch);
+                } catch (Exception e) {
+                    if (Log.isLoggable(Log.ERROR)) Log.e("Failed initial sync for " + batch.size() + " conversations", e);
+                }
+            }
+        }
+    };
+
+    /**
+     * Lets a conversation that could not be evaluated yet be requested again after
+     * RETRY_DELAY_MS.
+     */
+    private synchronized void retryLater(Conversation conversation) {
+        Uri id = conversation.getId();
+        mRequested.remove(id);
+        mRetryAt.put(id, SystemClock.uptimeMillis() + RETRY_DELAY_MS);
+    }
+
+    /**
+     * Plans and requests more history for a batch of conversations.  Fully synced conversations
+     * stay requested; those whose sync status does not allow deciding yet are released for a
+     * later retry.
+     */
+    private void sync(List<Conversation> batch) {
+        long desiredHistory;
+        synchronized (this) {
+            desiredHistory = mDesiredHistory;
+        }
+        if (desiredHistory <= 0) return;
+
+        List<Conversation> candidates = new ArrayList<Conversation>(batch.size());
+        for (Conversation conversation : batch) {
+            if (conversation.isDeleted()) continue;
+            Conversation.HistoricSyncStatus status = conversation.getHistoricSyncStatus();
+            if (status == Conversation.HistoricSyncStatus.NO_MORE_AVAILABLE) continue;
+            if (status != Conversation.HistoricSyncStatus.MORE_AVAILABLE) {
+                retryLater(conversation);
+                continue;
+            }
+            candidates.add(conversation);
+        }
+        if (candidates.isEmpty()) return;
+
+        Map<Uri, Long> counts = getLocalMessageCounts(mLayerClient, candidates);
+        for (Conversation conversation : candidates) {
+            long delta = desiredHistory - counts.get(conversation.getId());
+            if (delta > 0) conversation.syncMoreHistoricMessages((int) delta);
+        }
+    }
+
+    /**
+     * Returns the number of locally stored messages for each of the given conversations, keyed
+     * by conversation ID.  Runs one count query against the local store per conversation, since
+     * Layer queries can't group counts by conversation; a planning pass therefore costs at most
+     * BATCH_SIZE queries.  The conversations' own total message counts include messages that
+     * were never synced, so they can't be used.
+     *
+     * @param layerClient   Client used for the count queries.
+     * @param conversations Conversations to count messages for.
+     * @return Map of conversation ID to local message count.
+     */
+    public static Map<Uri, Long> getLocalMessageCounts(LayerClient layerClient, Collection<Conversation> conversations) {
+        Map<Uri, Long> counts = new HashMap<Uri, Long>(conversations.size() * 2);
+        for (Conversation conversation : conversations) {
+            Query<Message> localCountQuery = Query.builder(Message.class)
+                    .predicate(new Predicate(Message.Property.CONVERSATION, Predicate.Operator.EQUAL_TO, conversation))
+                    .build();
+            counts.put(conversation.getId(), layerClient.executeQueryForCount(localCountQuery));
+        }
+        if (Log.isLoggable(Log.VERBOSE)) Log.v("Counted local messages of " + conversations.size() + " conversations");
+        return counts;
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            mQueue.clear();
+            mQueued.clear();
+            mRetryAt.clear();
+        }
+        mExecutor.shutdownNow();
+    }
+}
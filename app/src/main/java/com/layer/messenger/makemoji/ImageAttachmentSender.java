@@ -0,0 +1,234 @@
+package com.layer.messenger.makemoji;
+
+import android.app.Activity;
+import android.content.ActivityNotFoundException;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Parcelable;
+import android.provider.MediaStore;
+
+import com.layer.atlas.messagetypes.AttachmentSender;
+import com.layer.atlas.messagetypes.threepartimage.ThreePartImageUtils;
+import com.layer.atlas.provider.Participant;
+import com.layer.messenger.App;
+import com.layer.messenger.R;
+import com.layer.messenger.util.Log;
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.messaging.Conversation;
+import com.layer.sdk.messaging.Message;
+import com.layer.sdk.messaging.MessageOptions;
+import com.layer.sdk.messaging.MessagePart;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+
+/**
+ * Sends a photo from the camera or the gallery as a three-part image message, like Atlas'
+ * CameraSender and GallerySender, but prepares it with the shared ImagePreprocessor instead of
+ * on the main thread in onActivityResult.  Preparation progress is reported to the
+ * ProgressListener set by MakeMojiAtlasComposer.
+ */
+public abstract class ImageAttachmentSender extends AttachmentSender {
+    private final static String MIME_TYPE_FULL = "image/jpeg";
+
+    public interface ProgressListener {
+        /**
+         * Called on the main thread while a photo is prepared.
+         *
+         * @param percent Completion from 0 to 100.
+         */
+        void onAttachmentProgress(ImageAttachmentSender sender, Uri source, int percent);
+
+        /**
+         * Called on the main thread once a photo was sent or failed to prepare.
+         */
+        void onAttachmentFinished(ImageAttachmentSender sender, Uri source, boolean sent);
+    }
+
+    private final int mRequestCode;
+    private final WeakReference<Activity> mActivity;
+    private ProgressListener mProgressListener;
+
+    protected ImageAttachmentSender(int titleResId, Integer iconResId, Activity activity, int requestCode) {
+        super(activity.getString(titleResId), iconResId);
+        mActivity = new WeakReference<Activity>(activity);
+        mRequestCode = requestCode;
+    }
+
+    public ImageAttachmentSender setProgressListener(ProgressListener progressListener) {
+        mProgressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * Returns the Intent that picks or captures a photo.
+     */
+    protected abstract Intent newPickIntent(Activity activity);
+
+    /**
+     * Returns the picked or captured photo of a result, or `null`.
+     */
+    protected abstract Uri getResultUri(Intent data);
+
+    /**
+     * Called once the photo at the Uri is no longer needed.
+     */
+    protected void onPhotoConsumed(Uri source) {
+    }
+
+    @Override
+    public boolean requestSend() {
+        Activity activity = mActivity.get();
+        if (activity == null) return false;
+        Intent intent = newPickIntent(activity);
+        if (intent == null) return false;
+        try {
+            activity.startActivityForResult(intent, mRequestCode);
+            return true;
+        } catch (ActivityNotFoundException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("No activity to handle " + intent, e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean onActivityResult(Activity activity, int requestCode, int resultCode, Intent data) {
+        if (requestCode != mRequestCode) return false;
+        Uri source = getResultUri(data);
+        if (resultCode != Activity.RESULT_OK || source == null) {
+            if (Log.isLoggable(Log.VERBOSE)) Log.v("No photo to send");
+            if (source != null) onPhotoConsumed(source);
+            return true;
+        }
+        prepare(source);
+        return true;
+    }
+
+    private void prepare(Uri source) {
+        // The photo goes to the conversation it was picked for, even if the composer moves on.
+        final Conversation conversation = getConversation();
+        if (conversation == null) {
+            onPhotoConsumed(source);
+            return;
+        }
+        App.getImagePreprocessor().prepare(source, new ImagePreprocessor.Callback() {
+            @Override
+            public void onProgress(Uri source, int percent) {
+                if (mProgressListener != null) mProgressListener.onAttachmentProgress(ImageAttachmentSender.this, source, percent);
+            }
+
+            @Override
+            public void onPrepared(Uri source, ImagePreprocessor.Prepared prepared) {
+                boolean sent = send(conversation, prepared);
+                onPhotoConsumed(source);
+                if (mProgressListener != null) mProgressListener.onAttachmentFinished(ImageAttachmentSender.this, source, sent);
+            }
+
+            @Override
+            public void onFailed(Uri source, Exception e) {
+                onPhotoConsumed(source);
+                if (mProgressListener != null) mProgressListener.onAttachmentFinished(ImageAttachmentSender.this, source, false);
+            }
+        });
+    }
+
+    private boolean send(Conversation conversation, ImagePreprocessor.Prepared prepared) {
+        if (conversation.isDeleted()) return false;
+        LayerClient layerClient = getLayerClient();
+        // Already upright, so the orientation is always 0.
+        String info = "{\"orientation\":0, \"width\":" + prepared.width + ", \"height\":" + prepared.height + "}";
+        MessagePart full = layerClient.newMessagePart(MIME_TYPE_FULL, prepared.full);
+        MessagePart preview = layerClient.newMessagePart(ThreePartImageUtils.MIME_TYPE_PREVIEW, prepared.preview);
+        MessagePart imageInfo = layerClient.newMessagePart(ThreePartImageUtils.MIME_TYPE_INFO, info.getBytes());
+
+        Participant me = getParticipantProvider().getParticipant(layerClient.getAuthenticatedUserId());
+        String myName = me == null ? "" : me.getName();
+        MessageOptions options = new MessageOptions().pushNotificationMessage(getContext().getString(R.string.notification_photo, myName));
+        // Same part order as ThreePartImageUtils: full, preview, info.
+        Message message = layerClient.newMessage(options, full, preview, imageInfo);
+        if (conversation == getConversation()) return send(message);
+        conversation.send(message);
+        return true;
+    }
+
+
+    //==============================================================================================
+    // Senders
+    //==============================================================================================
+
+    /**
+     * Captures a new photo with the camera app into the app's external pictures directory.
+     */
+    public static class Camera extends ImageAttachmentSender {
+        private final static int REQUEST_CODE = 0x4d30;
+        private final static String STATE_PHOTO_PATH = "photoPath";
+
+        private String mPhotoPath;
+
+        public Camera(int titleResId, Integer iconResId, Activity activity) {
+            super(titleResId, iconResId, activity, REQUEST_CODE);
+        }
+
+        @Override
+        protected Intent newPickIntent(Activity activity) {
+            File directory = activity.getExternalFilesDir(Environment.DIRECTORY_PICTURES);
+            if (directory == null || (!directory.exists() && !directory.mkdirs())) {
+                if (Log.isLoggable(Log.ERROR)) Log.e("No external storage for camera photos");
+                return null;
+            }
+            File photo = new File(directory, "photo_" + System.currentTimeMillis() + ".jpg");
+            mPhotoPath = photo.getAbsolutePath();
+            return new Intent(MediaStore.ACTION_IMAGE_CAPTURE).putExtra(MediaStore.EXTRA_OUTPUT, Uri.fromFile(photo));
+        }
+
+        @Override
+        protected Uri getResultUri(Intent data) {
+            if (mPhotoPath == null) return null;
+            Uri photo = Uri.fromFile(new File(mPhotoPath));
+            mPhotoPath = null;
+            return photo;
+        }
+
+        @Override
+        protected void onPhotoConsumed(Uri source) {
+            File photo = new File(source.getPath());
+            if (photo.exists() && !photo.delete() && Log.isLoggable(Log.WARN)) Log.w("Could not delete " + source);
+        }
+
+        @Override
+        public Parcelable onSaveInstanceState() {
+            if (mPhotoPath == null) return null;
+            Bundle state = new Bundle();
+            state.putString(STATE_PHOTO_PATH, mPhotoPath);
+            return state;
+        }
+
+        @Override
+        public void onRestoreInstanceState(Parcelable state) {
+            if (state instanceof Bundle) mPhotoPath = ((Bundle) state).getString(STATE_PHOTO_PATH);
+        }
+    }
+
+    /**
+     * Picks an existing photo.
+     */
+    public static class Gallery extends ImageAttachmentSender {
+        private final static int REQUEST_CODE = 0x4d31;
+
+        public Gallery(int titleResId, Integer iconResId, Activity activity) {
+            super(titleResId, iconResId, activity, REQUEST_CODE);
+        }
+
+        @Override
+        protected Intent newPickIntent(Activity activity) {
+            return new Intent(Intent.ACTION_GET_CONTENT).setType("image/*").addCategory(Intent.CATEGORY_OPENABLE);
+        }
+
+        @Override
+        protected Uri getResultUri(Intent data) {
+            return data == null ? null : data.getData();
+        }
+    }
+}
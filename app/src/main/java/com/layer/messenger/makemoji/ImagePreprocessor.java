@@ -0,0 +1,321 @@
+package com.layer.messenger.makemoji;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.provider.MediaStore;
+
+import com.layer.messenger.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prepares picked and captured photos for sending on a small, bounded worker pool: reads the
+ * EXIF orientation, decodes with a sample size, downscales and rotates into one bitmap of at
+ * most MAX_FULL_DIMENSION, and encodes it and a preview as JPEG.  A photo whose sampled decode
+ * would still exceed DECODE_BUDGET_BYTES is decoded in horizontal strips drawn straight into the
+ * output bitmap, so a 12 MP photo never needs a full-size bitmap.  Progress and results are
+ * delivered on the main thread.
+ */
+public class ImagePreprocessor {
+    public final static int MAX_FULL_DIMENSION = 2048;
+    public final static int MAX_PREVIEW_DIMENSION = 512;
+    private final static int FULL_QUALITY = 85;
+    private final static int PREVIEW_QUALITY = 60;
+    private final static int DECODE_BUDGET_BYTES = 8 * 1024 * 1024;
+    private final static int STRIP_HEIGHT = 256;
+    private final static int POOL_SIZE = 2;
+    private final static int MAX_QUEUED = 8;
+
+    /**
+     * JPEG bytes of a prepared photo, already upright.
+     */
+    public static class Prepared {
+        public final byte[] full;
+        public final int width;
+        public final int height;
+        public final byte[] preview;
+        public final int previewWidth;
+        public final int previewHeight;
+
+        Prepared(byte[] full, int width, int height, byte[] preview, int previewWidth, int previewHeight) {
+            this.full = full;
+            this.width = width;
+            this.height = height;
+            this.preview = preview;
+            this.previewWidth = previewWidth;
+            this.previewHeight = previewHeight;
+        }
+    }
+
+    public interface Callback {
+        /**
+         * Called on the main thread as the photo moves through the pipeline.
+         *
+         * @param percent Completion from 0 to 100.
+         */
+        void onProgress(Uri source, int percent);
+
+        void onPrepared(Uri source, Prepared prepared);
+
+        void onFailed(Uri source, Exception e);
+    }
+
+    private final ContentResolver mContentResolver;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "ImagePreprocessor");
+        }
+    });
+
+    public ImagePreprocessor(Context context) {
+        mContentResolver = context.getApplicationContext().getContentResolver();
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Prepares the photo at the given content or file Uri in the background.
+     */
+    public void prepare(final Uri source, final Callback callback) {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final Prepared prepared = process(source, callback);
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onPrepared(source, prepared);
+                            }
+                        });
+                    } catch (final Exception e) {
+                        if (Log.isLoggable(Log.ERROR)) Log.e("Failed to prepare " + source, e);
+                        failed(source, callback, e);
+                    } catch (OutOfMemoryError e) {
+                        if (Log.isLoggable(Log.ERROR)) Log.e("Out of memory preparing " + source, e);
+                        failed(source, callback, new IOException("Out of memory"));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (Log.isLoggable(Log.WARN)) Log.w("Too many photos queued, dropping " + source);
+            failed(source, callback, e);
+        }
+    }
+
+    private void failed(final Uri source, final Callback callback, final Exception e) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onFailed(source, e);
+            }
+        });
+    }
+
+    private void progress(final Uri source, final Callback callback, final int percent) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onProgress(source, percent);
+            }
+        });
+    }
+
+
+    //==============================================================================================
+    // Pipeline (worker threads)
+    //==============================================================================================
+
+    private Prepared process(Uri source, Callback callback) throws IOException {
+        progress(source, callback, 0);
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        InputStream in = open(source);
+        try {
+            BitmapFactory.decodeStream(in, null, bounds);
+        } finally {
+            close(in);
+        }
+        int sourceWidth = bounds.outWidth;
+        int sourceHeight = bounds.outHeight;
+        if (sourceWidth <= 0 || sourceHeight <= 0) throw new IOException("Not an image: " + source);
+        int degrees = readOrientation(source);
+        progress(source, callback, 10);
+
+        // Output size and the largest power-of-two sample that still covers it.
+        float scale = Math.min(1f, (float) MAX_FULL_DIMENSION / Math.max(sourceWidth, sourceHeight));
+        int scaledWidth = Math.max(1, Math.round(sourceWidth * scale));
+        int scaledHeight = Math.max(1, Math.round(sourceHeight * scale));
+        int sampleSize = 1;
+        while (sampleSize * 2 <= 1f / scale) sampleSize *= 2;
+
+        boolean sideways = degrees == 90 || degrees == 270;
+        Bitmap full = Bitmap.createBitmap(sideways ? scaledHeight : scaledWidth, sideways ? scaledWidth : scaledHeight, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(full);
+        Matrix toOutput = new Matrix();
+        toOutput.postScale(scale * sampleSize, scale * sampleSize);
+        toOutput.postRotate(degrees);
+        if (degrees == 90) toOutput.postTranslate(scaledHeight, 0);
+        if (degrees == 180) toOutput.postTranslate(scaledWidth, scaledHeight);
+        if (degrees == 270) toOutput.postTranslate(0, scaledWidth);
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        long sampledBytes = 4L * (sourceWidth / sampleSize) * (sourceHeight / sampleSize);
+        if (sampledBytes <= DECODE_BUDGET_BYTES) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            in = open(source);
+            Bitmap sampled;
+            try {
+                sampled = BitmapFactory.decodeStream(in, null, options);
+            } finally {
+                close(in);
+            }
+            if (sampled == null) throw new IOException("Could not decode " + source);
+            // The decoder may round the sample size; map its actual size onto the output.
+            Matrix matrix = new Matrix();
+            matrix.setScale((float) sourceWidth / sampleSize / sampled.getWidth(), (float) sourceHeight / sampleSize / sampled.getHeight());
+            matrix.postConcat(toOutput);
+            canvas.drawBitmap(sampled, matrix, paint);
+            sampled.recycle();
+            progress(source, callback, 60);
+        } else {
+            decodeStrips(source, callback, sourceWidth, sourceHeight, sampleSize, canvas, toOutput, paint);
+        }
+
+        byte[] fullJpeg = compress(full, FULL_QUALITY);
+        progress(source, callback, 80);
+
+        float previewScale = Math.min(1f, (float) MAX_PREVIEW_DIMENSION / Math.max(full.getWidth(), full.getHeight()));
+        int previewWidth = Math.max(1, Math.round(full.getWidth() * previewScale));
+        int previewHeight = Math.max(1, Math.round(full.getHeight() * previewScale));
+        Bitmap preview = Bitmap.createScaledBitmap(full, previewWidth, previewHeight, true);
+        byte[] previewJpeg = compress(preview, PREVIEW_QUALITY);
+        int width = full.getWidth();
+        int height = full.getHeight();
+        if (preview != full) preview.recycle();
+        full.recycle();
+        progress(source, callback, 100);
+
+        if (Log.isLoggable(Log.VERBOSE)) {
+            Log.v("Prepared " + sourceWidth + "x" + sourceHeight + " photo as " + width + "x" + height + " (" + fullJpeg.length + " bytes), sample " + sampleSize + ", rotated " + degrees);
+        }
+        return new Prepared(fullJpeg, width, height, previewJpeg, previewWidth, previewHeight);
+    }
+
+    /**
+     * Decodes the photo STRIP_HEIGHT sampled rows at a time, drawing each strip into the output.
+     */
+    private void decodeStrips(Uri source, Callback callback, int sourceWidth, int sourceHeight, int sampleSize, Canvas canvas, Matrix toOutput, Paint paint) throws IOException {
+        InputStream in = open(source);
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(in, false);
+        } finally {
+            close(in);
+        }
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            int stripRows = STRIP_HEIGHT * sampleSize;
+            Rect region = new Rect();
+            Matrix matrix = new Matrix();
+            for (int top = 0; top < sourceHeight; top += stripRows) {
+                region.set(0, top, sourceWidth, Math.min(sourceHeight, top + stripRows));
+                Bitmap strip = decoder.decodeRegion(region, options);
+                if (strip == null) throw new IOException("Could not decode " + source + " at row " + top);
+                matrix.setScale((float) region.width() / sampleSize / strip.getWidth(), (float) region.height() / sampleSize / strip.getHeight());
+                matrix.postTranslate(0, (float) top / sampleSize);
+                matrix.postConcat(toOutput);
+                canvas.drawBitmap(strip, matrix, paint);
+                strip.recycle();
+                progress(source, callback, 10 + 50 * region.bottom / sourceHeight);
+            }
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    private InputStream open(Uri source) throws IOException {
+        InputStream in = mContentResolver.openInputStream(source);
+        if (in == null) throw new FileNotFoundException(source.toString());
+        return in;
+    }
+
+    /**
+     * Returns the clockwise rotation that makes the photo upright.
+     */
+    private int readOrientation(Uri source) {
+        try {
+            if (ContentResolver.SCHEME_FILE.equals(source.getScheme())) {
+                int orientation = new ExifInterface(source.getPath()).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+                switch (orientation) {
+                    case ExifInterface.ORIENTATION_ROTATE_90:
+                        return 90;
+                    case ExifInterface.ORIENTATION_ROTATE_180:
+                        return 180;
+                    case ExifInterface.ORIENTATION_ROTATE_270:
+                        return 270;
+                    default:
+                        return 0;
+                }
+            }
+            Cursor cursor = mContentResolver.query(source, new String[]{MediaStore.Images.ImageColumns.ORIENTATION}, null, null, null);
+            if (cursor == null) return 0;
+            try {
+                if (!cursor.moveToFirst()) return 0;
+                int degrees = (cursor.getInt(0) % 360 + 360) % 360;
+                return degrees == 90 || degrees == 180 || degrees == 270 ? degrees : 0;
+            } finally {
+                cursor.close();
+            }
+        } catch (Exception e) {
+            if (Log.isLoggable(Log.VERBOSE)) Log.v("No orientation for " + source + ", assuming upright");
+            return 0;
+        }
+    }
+
+    private static byte[] compress(Bitmap bitmap, int quality) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+        return out.toByteArray();
+    }
+
+    private static void close(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+}
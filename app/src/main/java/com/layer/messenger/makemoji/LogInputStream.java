@@ -0,0 +1,117 @@
+package com.layer.messenger.makemoji;
+
+import com.layer.messenger.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads an append-only log file of length-prefixed records and tracks its position, so a reader
+ * can reject a length that runs past the end of the file and cut a damaged tail off with
+ * truncate() before appending again.
+ */
+class LogInputStream extends DataInputStream {
+    private final File mFile;
+    private final long mLength;
+    private final Counter mCounter;
+
+    private static class Counter extends FilterInputStream {
+        long position = 0;
+
+        Counter(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) position++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private LogInputStream(File file, Counter counter) {
+        super(counter);
+        mFile = file;
+        mLength = file.length();
+        mCounter = counter;
+    }
+
+    public static LogInputStream open(File file) throws IOException {
+        return new LogInputStream(file, new Counter(new BufferedInputStream(new FileInputStream(file))));
+    }
+
+    /**
+     * Returns the number of bytes read so far.
+     */
+    public long position() {
+        return mCounter.position;
+    }
+
+    /**
+     * Reads an int length followed by that many bytes.
+     *
+     * @throws EOFException if the length is negative or runs past the end of the file.
+     */
+    public byte[] readBytes() throws IOException {
+        int length = readInt();
+        if (length < 0 || length > mLength - position()) {
+            throw new EOFException("Record length " + length + " at " + position() + " runs past the end of " + mFile.getName());
+        }
+        byte[] bytes = new byte[length];
+        readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Cuts the file off after the last good record if anything follows it.  Call after closing
+     * the stream.
+     *
+     * @param good Position after the last complete record.
+     */
+    public void truncate(long good) {
+        if (good >= mLength) return;
+        if (Log.isLoggable(Log.WARN)) Log.w("Truncating " + mFile.getName() + " from " + mLength + " to " + good + " bytes");
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            file.setLength(good);
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Could not truncate " + mFile.getName(), e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+}
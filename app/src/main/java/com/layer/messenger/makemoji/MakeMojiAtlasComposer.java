@@ -28,11 +28,13 @@ import android.content.res.ColorStateList;
 import android.content.res.TypedArray;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.v4.graphics.drawable.DrawableCompat;
 import android.text.Editable;
+import android.text.SpannableStringBuilder;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.TypedValue;
@@ -52,16 +54,27 @@ import com.layer.atlas.messagetypes.MessageSender;
 import com.layer.atlas.messagetypes.text.TextSender;
 import com.layer.atlas.provider.ParticipantProvider;
 import com.layer.atlas.util.EditTextUtil;
+import com.layer.messenger.App;
+import com.layer.messenger.R;
+import com.layer.messenger.util.Log;
 import com.layer.sdk.LayerClient;
-import com.layer.sdk.listeners.LayerTypingIndicatorListener;
 import com.layer.sdk.messaging.Conversation;
 import com.makemoji.mojilib.Moji;
-import com.makemoji.mojilib.MojiInputLayout;
 
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 
 public class MakeMojiAtlasComposer extends FrameLayout {
+    private final static ExecutorService sSendExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "MojiSend");
+        }
+    });
+
     private EditText mMessageEditText;
     private Button mSendButton;
     private ImageView mAttachButton;
@@ -73,8 +86,15 @@ public class MakeMojiAtlasComposer extends FrameLayout {
     private TextSender mTextSender;
     private ArrayList<AttachmentSender> mAttachmentSenders = new ArrayList<AttachmentSender>();
     private MessageSender.Callback mMessageSenderCallback;
+    private ImageAttachmentSender.ProgressListener mAttachmentProgressListener;
 
     private PopupWindow mAttachmentMenu;
+    private MessageOutbox mOutbox;
+    private MojiUsageQueue mUsageQueue;
+    private CharSequence mDefaultHint;
+    private DraftStore mDraftStore;
+    private boolean mRestoringDraft = false;
+    private final TypingIndicatorController mTypingIndicatorController = new TypingIndicatorController();
 
     // styles
     private boolean mEnabled;
@@ -122,6 +142,7 @@ public class MakeMojiAtlasComposer extends FrameLayout {
         });
 
         mMessageEditText = (EditText) findViewById(com.layer.atlas.R.id.message_edit_text);
+        mDefaultHint = mMessageEditText.getHint();
         mMessageEditText.addTextChangedListener(new TextWatcher() {
             @Override
             public void beforeTextChanged(CharSequence s, int start, int count, int after) {
@@ -134,31 +155,149 @@ public class MakeMojiAtlasComposer extends FrameLayout {
             @Override
             public void afterTextChanged(Editable s) {
                 if (mConversation == null || mConversation.isDeleted()) return;
-                if (s.length() > 0) {
-                    mSendButton.setEnabled(isEnabled());
-                    mConversation.send(LayerTypingIndicatorListener.TypingIndicator.STARTED);
-                } else {
-                    mSendButton.setEnabled(false);
-                    mConversation.send(LayerTypingIndicatorListener.TypingIndicator.FINISHED);
-                }
+                mSendButton.setEnabled(s.length() > 0 && isEnabled());
+                if (mRestoringDraft) return;
+                mTypingIndicatorController.onTextChanged(s.length() > 0);
+                mDraftStore.put(mConversation.getId(), s);
             }
         });
 
         mSendButton = (Button) findViewById(com.layer.atlas.R.id.send_button);
-        final MojiInputLayout analytics = new MojiInputLayout(getContext());
+        mOutbox = App.getMessageOutbox();
+        registerWithOutbox();
+        mUsageQueue = App.getMojiUsageQueue();
+        mDraftStore = App.getDraftStore();
         mSendButton.setOnClickListener(new OnClickListener() {
             public void onClick(View v) {
-                if (!mTextSender.requestSend(Moji.toHtml(mMessageEditText.getText()))) return;
-                analytics.setInputText(mMessageEditText.getText());
-                analytics.manualSaveInputToRecentsAndBackend();
+                if (mMessageEditText.length() == 0) return;
+                // Snapshot the text with its emoji spans and clear the composer right away.
+                SpannableStringBuilder composed = new SpannableStringBuilder(mMessageEditText.getText());
+                mTypingIndicatorController.finish();
                 mMessageEditText.setText("");
                 mSendButton.setEnabled(false);
+                send(composed);
             }
         });
         applyStyle();
         return this;
     }
 
+    /**
+     * Serializes a composed message on the send thread and hands it to the MessageOutbox, which
+     * passes messages to Layer in the order they were composed, then queues it for the
+     * batched MakeMoji usage upload.  Without an outbox the TextSender sends it on the main
+     * thread, to the conversation the message was composed in; if that send is refused, the text
+     * is put back into the composer if it is still empty.
+     */
+    private void send(final SpannableStringBuilder composed) {
+        final Conversation conversation = mConversation;
+        final MessageOutbox outbox = mOutbox;
+        final MojiUsageQueue usageQueue = mUsageQueue;
+        sSendExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String html;
+                try {
+                    html = Moji.toHtml(composed);
+                } catch (Exception e) {
+                    if (Log.isLoggable(Log.ERROR)) Log.e("Failed to serialize composed message", e);
+                    html = null;
+                }
+                if (html == null || html.trim().length() == 0) {
+                    restoreComposed(composed);
+                } else if (outbox != null && conversation != null) {
+                    outbox.enqueue(conversation, html);
+                    if (usageQueue != null) usageQueue.add(html);
+                } else {
+                    final String text = html;
+                    post(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendNow(conversation, text, composed, usageQueue);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends through the TextSender on the main thread, pointing it at the given conversation for
+     * this send only.
+     */
+    private void sendNow(Conversation conversation, String html, SpannableStringBuilder composed, MojiUsageQueue usageQueue) {
+        TextSender textSender = mTextSender;
+        boolean sent = false;
+        if (textSender != null && conversation != null && !conversation.isDeleted()) {
+            try {
+                textSender.setConversation(conversation);
+                sent = textSender.requestSend(html);
+            } catch (Exception e) {
+                if (Log.isLoggable(Log.ERROR)) Log.e("Failed to send composed message", e);
+            } finally {
+                textSender.setConversation(mConversation);
+            }
+        }
+        if (!sent) {
+            restoreComposed(composed);
+        } else if (usageQueue != null) {
+            usageQueue.add(html);
+        }
+    }
+
+    /**
+     * Puts messages the outbox could not send back into the composer, or into their
+     * conversation's draft if the composer shows another conversation.
+     */
+    private final MessageOutbox.Listener mOutboxListener = new MessageOutbox.Listener() {
+        @Override
+        public void onOutboxChanged(int depth, long lastLatencyMs) {
+            showOutboxDepth(depth);
+        }
+
+        @Override
+        public void onMessageRefused(final Uri conversationId, String html) {
+            final CharSequence text = Moji.parseHtml(html, null, true).spanned;
+            if (mConversation != null && mConversation.getId().equals(conversationId)) {
+                if (mMessageEditText.length() == 0) mMessageEditText.setText(text);
+                return;
+            }
+            if (mDraftStore == null) return;
+            mDraftStore.get(conversationId, new DraftStore.Callback() {
+                @Override
+                public void onDraft(Uri conversationId, CharSequence draft) {
+                    if (draft == null) mDraftStore.put(conversationId, text);
+                }
+            });
+        }
+    };
+
+    /**
+     * Puts the text of an unsent message back into the composer if it is still empty.  May be
+     * called from any thread.
+     */
+    /**
+     * Shows how many messages the outbox hasn't handed to Layer yet in place of the hint, e.g.
+     * while waiting for authentication.
+     */
+    private void showOutboxDepth(int depth) {
+        if (mMessageEditText == null) return;
+        if (depth == 0) {
+            mMessageEditText.setHint(mDefaultHint);
+        } else {
+            mMessageEditText.setHint(getResources().getQuantityString(R.plurals.composer_hint_outbox_depth, depth, depth));
+        }
+    }
+
+    private void restoreComposed(final SpannableStringBuilder composed) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mMessageEditText.length() == 0) mMessageEditText.setText(composed);
+            }
+        });
+    }
+
     /**
      * Sets the Conversation used for sending Messages.
      *
@@ -166,14 +305,43 @@ public class MakeMojiAtlasComposer extends FrameLayout {
      * @return This AtlasMessageComposer.
      */
     public MakeMojiAtlasComposer setConversation(Conversation conversation) {
+        Conversation previous = mConversation;
         mConversation = conversation;
+        mTypingIndicatorController.setConversation(conversation);
         if (mTextSender != null) mTextSender.setConversation(conversation);
         for (AttachmentSender sender : mAttachmentSenders) {
             sender.setConversation(conversation);
         }
+        if (conversation != previous) restoreDraft();
         return this;
     }
 
+    /**
+     * Replaces the composer text with the current conversation's draft from the DraftStore.
+     */
+    private void restoreDraft() {
+        if (mDraftStore == null) return;
+        mDraftStore.flush();
+        setDraftText(null);
+        if (mConversation == null) return;
+        mDraftStore.get(mConversation.getId(), new DraftStore.Callback() {
+            @Override
+            public void onDraft(Uri conversationId, CharSequence draft) {
+                // Late drafts must not replace text typed in the meantime.
+                if (draft == null || mMessageEditText.length() > 0) return;
+                if (mConversation == null || !mConversation.getId().equals(conversationId)) return;
+                setDraftText(draft);
+            }
+        });
+    }
+
+    private void setDraftText(CharSequence draft) {
+        mRestoringDraft = true;
+        mMessageEditText.setText(draft);
+        if (draft != null) mMessageEditText.setSelection(mMessageEditText.length());
+        mRestoringDraft = false;
+    }
+
     /**
      * Sets a listener for receiving the message EditText focus change callbacks.
      *
@@ -213,6 +381,9 @@ public class MakeMojiAtlasComposer extends FrameLayout {
             sender.init(this.getContext().getApplicationContext(), mLayerClient, mParticipantProvider);
             sender.setConversation(mConversation);
             if (mMessageSenderCallback != null) sender.setCallback(mMessageSenderCallback);
+            if (sender instanceof ImageAttachmentSender) {
+                ((ImageAttachmentSender) sender).setProgressListener(mAttachmentProgressListener);
+            }
             mAttachmentSenders.add(sender);
             addAttachmentMenuItem(sender);
         }
@@ -231,12 +402,28 @@ public class MakeMojiAtlasComposer extends FrameLayout {
         mMessageSenderCallback = callback;
         if (mMessageSenderCallback == null) return this;
         if (mTextSender != null) mTextSender.setCallback(callback);
+        if (mOutbox != null) mOutbox.setMessageSenderCallback(callback);
         for (AttachmentSender sender : mAttachmentSenders) {
             sender.setCallback(callback);
         }
         return this;
     }
 
+    /**
+     * Sets an optional listener for the progress of photos that ImageAttachmentSenders prepare in
+     * the background before sending.
+     *
+     * @param listener Listener to receive preparation progress.
+     * @return This AtlasMessageComposer.
+     */
+    public MakeMojiAtlasComposer setAttachmentProgressListener(ImageAttachmentSender.ProgressListener listener) {
+        mAttachmentProgressListener = listener;
+        for (AttachmentSender sender : mAttachmentSenders) {
+            if (sender instanceof ImageAttachmentSender) ((ImageAttachmentSender) sender).setProgressListener(listener);
+        }
+        return this;
+    }
+
     public MakeMojiAtlasComposer setTypeface(Typeface typeface) {
         this.mTypeFace = typeface;
         applyTypeface();
@@ -274,6 +461,30 @@ public class MakeMojiAtlasComposer extends FrameLayout {
         }
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        registerWithOutbox();
+    }
+
+    private void registerWithOutbox() {
+        if (mOutbox == null) return;
+        mOutbox.setListener(mOutboxListener);
+        showOutboxDepth(mOutbox.getDepth());
+        if (mMessageSenderCallback != null) mOutbox.setMessageSenderCallback(mMessageSenderCallback);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        mTypingIndicatorController.finish();
+        if (mDraftStore != null) mDraftStore.flush();
+        if (mOutbox != null) {
+            mOutbox.removeListener(mOutboxListener);
+            if (mMessageSenderCallback != null) mOutbox.removeMessageSenderCallback(mMessageSenderCallback);
+        }
+        super.onDetachedFromWindow();
+    }
+
     @Override
     public void setEnabled(boolean enabled) {
         if (mAttachButton != null) mAttachButton.setEnabled(enabled);
@@ -1,8 +1,14 @@
 package com.layer.messenger.makemoji;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.drawable.GradientDrawable;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.SpannableStringBuilder;
 import android.text.Spanned;
+import android.util.LruCache;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -14,6 +20,7 @@ import com.layer.atlas.messagetypes.AtlasCellFactory;
 import com.layer.atlas.provider.Participant;
 import com.layer.atlas.provider.ParticipantProvider;
 import com.layer.atlas.util.Util;
+import com.layer.messenger.util.Log;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.messaging.Actor;
 import com.layer.sdk.messaging.Message;
@@ -21,31 +28,108 @@ import com.layer.sdk.messaging.MessagePart;
 
 import com.makemoji.mojilib.HyperMojiListener;
 import com.makemoji.mojilib.Moji;
-import com.makemoji.mojilib.ParsedAttributes;
+import com.makemoji.mojilib.MojiSpan;
 
-public class MakeMojiCellFactory extends AtlasCellFactory<MakeMojiCellFactory.CellHolder, MakeMojiCellFactory.TextInfo> implements View.OnLongClickListener {
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+public class MakeMojiCellFactory extends AtlasCellFactory<MakeMojiCellFactory.CellHolder, MakeMojiCellFactory.TextInfo> implements View.OnLongClickListener, View.OnClickListener {
     public final static String MIME_TYPE = "text/plain";
+    // Deflated UTF-8 MakeMoji HTML, sent by MakeMojiTextSender for large bodies.
+    public final static String MIME_TYPE_DEFLATE = "text/x-makemoji-html+deflate";
+    // Longer bodies are shown truncated and expanded by this factor on each tap.
+    private final static int TRUNCATE_CHARS = 8 * 1024;
+    private final static int EXPAND_FACTOR = 4;
+    // Enough HTML for a one-line conversation preview, even with a few emoji tags.
+    private final static int PREVIEW_CHARS = 1024;
+    private final static String ELLIPSIS = " \u2026";
+    // Share of the app's heap class given to parsed messages: 1/32, e.g. 1MB of a 32MB class.
+    private final static int CACHE_MEMORY_CLASS_DIVISOR = 32;
+    private final static int MIN_CACHE_BYTES = 256 * 1024;
     HyperMojiListener hyperMojiListener;
+    private final TextInfoCache mTextInfoCache;
+    private final MojiLayoutCache mLayoutCache = new MojiLayoutCache();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Reads message bodies for taps; set by MakeMojiParsePrefetcher.
+    private volatile Executor mExecutor = AsyncTask.THREAD_POOL_EXECUTOR;
+    // Main thread only: messages whose expansion is being parsed
+    private final Set<String> mExpanding = new HashSet<String>();
 
-    public MakeMojiCellFactory(HyperMojiListener hyperMojiListener) {
-        super(256 * 1024);
+    public MakeMojiCellFactory(Context context, HyperMojiListener hyperMojiListener) {
+        // Parsed content lives in mTextInfoCache, which is sized by retained heap rather than
+        // text bytes; the superclass cache is bypassed by getParsedContent below.
+        super(1);
         this.hyperMojiListener = hyperMojiListener;
+        mTextInfoCache = new TextInfoCache(getCacheBudget(context));
+    }
+
+    /**
+     * Returns a cache budget in bytes scaled to the device's per-app memory class.
+     */
+    static int getCacheBudget(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int budget = am.getMemoryClass() * 1024 * 1024 / CACHE_MEMORY_CLASS_DIVISOR;
+        return Math.max(MIN_CACHE_BYTES, budget);
+    }
+
+    /**
+     * Sets the executor that reads and parses message bodies when a cell is tapped.
+     *
+     * @return This MakeMojiCellFactory.
+     */
+    public MakeMojiCellFactory setExecutor(Executor executor) {
+        mExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Runs work on the executor, or drops it if the executor was shut down.
+     */
+    private boolean execute(Runnable work) {
+        try {
+            mExecutor.execute(work);
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (Log.isLoggable(Log.VERBOSE)) Log.v("Dropping cell work after shutdown");
+            return false;
+        }
+    }
+
+    /**
+     * Returns the cache of parsed messages, whose hit, miss, and eviction counts can be read
+     * for diagnostics.
+     */
+    public TextInfoCache getTextInfoCache() {
+        return mTextInfoCache;
     }
 
     public static boolean isType(Message message) {
-        return message.getMessageParts().get(0).getMimeType().equals(MIME_TYPE);
+        return isType(message.getMessageParts().get(0));
+    }
+
+    public static boolean isType(MessagePart part) {
+        String mimeType = part.getMimeType();
+        return mimeType.equals(MIME_TYPE) || mimeType.equals(MIME_TYPE_DEFLATE);
     }
 
     public static String getMessagePreview(Context context, Message message) {
-        MessagePart part = message.getMessageParts().get(0);
         // For large text content, the MessagePart may not be downloaded yet.
-        return part.isContentReady() ? new String(part.getData()) : "";
+        return MessagePartText.read(message.getMessageParts().get(0));
     }
 
     public static void setMessagePreview(TextView textView, Message message){
-        MessagePart part = message.getMessageParts().get(0);
-        String html = part.isContentReady() ? new String(part.getData()) : "";
-        Moji.setText(html,textView,true);
+        Moji.setText(parseMessagePreview(message), textView);
+    }
+
+    /**
+     * Parses the start of a message for a one-line preview.  Safe to call from any thread.
+     */
+    public static Spanned parseMessagePreview(Message message) {
+        // A preview only shows one line, so only decode the start of the body.
+        String html = MessagePartText.read(message.getMessageParts().get(0), PREVIEW_CHARS).text;
+        return MojiHtmlCache.getInstance().parse(html);
     }
     @Override
     public boolean isBindable(Message message) {
@@ -59,7 +143,8 @@ public class MakeMojiCellFactory extends AtlasCellFactory<MakeMojiCellFactory.Ce
         v.setBackgroundResource(isMe ? com.layer.atlas.R.drawable.atlas_message_item_cell_me : com.layer.atlas.R.drawable.atlas_message_item_cell_them);
         ((GradientDrawable) v.getBackground()).setColor(isMe ? mMessageStyle.getMyBubbleColor() : mMessageStyle.getOtherBubbleColor());
 
-        TextView t = (TextView) v.findViewById(com.layer.atlas.R.id.cell_text);
+        TextView original = (TextView) v.findViewById(com.layer.atlas.R.id.cell_text);
+        TextView t = MojiBubbleTextView.replace(original, mLayoutCache, templateSlot(isMe));
         t.setTextSize(TypedValue.COMPLEX_UNIT_PX, isMe ? mMessageStyle.getMyTextSize() : mMessageStyle.getOtherTextSize());
         t.setTextColor(isMe ? mMessageStyle.getMyTextColor() : mMessageStyle.getOtherTextColor());
         t.setLinkTextColor(isMe ? mMessageStyle.getMyTextColor() : mMessageStyle.getOtherTextColor());
@@ -67,11 +152,29 @@ public class MakeMojiCellFactory extends AtlasCellFactory<MakeMojiCellFactory.Ce
         return new CellHolder(v,hyperMojiListener);
     }
 
+    @Override
+    public TextInfo getParsedContent(LayerClient layerClient, ParticipantProvider participantProvider, Message message) {
+        String id = message.getId().toString();
+        TextInfo value = mTextInfoCache.get(id);
+        if (value != null) return value;
+        // Checked before parsing: content that becomes ready mid-parse still yields empty text.
+        boolean ready = isContentReady(message);
+        value = parseContent(layerClient, participantProvider, message);
+        // Text parsed before its part is downloaded is empty; parse again on the next bind.
+        if (value != null && ready) mTextInfoCache.put(id, value);
+        return value;
+    }
+
+    /**
+     * Returns whether the part parseText reads is downloaded.  Until then the parsed text is
+     * empty, so it is neither cached nor worth prefetching.
+     */
+    public static boolean isContentReady(Message message) {
+        return message.getMessageParts().get(0).isContentReady() || MojiTokens.getPart(message) != null;
+    }
+
     @Override
     public TextInfo parseContent(LayerClient layerClient, ParticipantProvider participantProvider, Message message) {
-        MessagePart part = message.getMessageParts().get(0);
-        String html = part.isContentReady() ? new String(part.getData()) : "";
-        ParsedAttributes parsedAttributes = Moji.parseHtml(html,null,true); //also contains size, color.
         String name;
         Actor sender = message.getSender();
         if (sender.getName() != null) {
@@ -80,51 +183,221 @@ public class MakeMojiCellFactory extends AtlasCellFactory<MakeMojiCellFactory.Ce
             Participant participant = participantProvider.getParticipant(sender.getUserId());
             name = participant == null ? "" : (participant.getName() + ": ");
         }
-        return new TextInfo(html,parsedAttributes.spanned, name);
+        return parseText(message, name, TRUNCATE_CHARS);
+    }
+
+    /**
+     * Measures a parsed message's text off the main thread with the style and width its bubble
+     * was last measured at, so laying it out on bind reuses the measured words.  Does nothing
+     * until a bubble on the same side has been measured.
+     */
+    public void precomputeLayout(LayerClient layerClient, Message message, TextInfo parsed) {
+        if (parsed == null) return;
+        boolean isMe = message.getSender().getUserId() != null && message.getSender().getUserId().equals(layerClient.getAuthenticatedUserId());
+        mLayoutCache.precompute(templateSlot(isMe), layoutKey(message, parsed), parsed.getSpanned());
+    }
+
+    private static int templateSlot(boolean isMe) {
+        return isMe ? 1 : 0;
+    }
+
+    /**
+     * Identifies the measured content: the message plus how much of it is shown.
+     */
+    private static String layoutKey(Message message, TextInfo parsed) {
+        return message.getId().toString() + '#' + parsed.getMaxChars();
+    }
+
+    /**
+     * Builds the message from its MojiTokens part when it has one that fits in maxChars;
+     * otherwise decodes and parses at most maxChars of the HTML body, marking the result
+     * truncated when more remains.
+     */
+    private static TextInfo parseText(Message message, String clipboardPrefix, int maxChars) {
+        Spanned tokens = MojiTokens.read(message);
+        if (tokens != null && tokens.length() <= maxChars) return new TextInfo(tokens, clipboardPrefix, message);
+
+        MessagePart part = message.getMessageParts().get(0);
+        MessagePartText.Excerpt excerpt = MessagePartText.read(part, maxChars);
+        // Identical HTML across messages shares one parse and one Spanned.
+        Spanned spanned = MojiHtmlCache.getInstance().parse(excerpt.text);
+        if (!excerpt.truncated) return new TextInfo(excerpt.text, spanned, clipboardPrefix);
+        spanned = new SpannableStringBuilder(spanned).append(ELLIPSIS);
+        return new TextInfo(excerpt.text, spanned, clipboardPrefix, message, maxChars);
     }
 
     @Override
     public void bindCellHolder(CellHolder cellHolder, final TextInfo parsed, Message message, CellHolderSpecs specs) {
-     //   Moji.setText(parsed.getSpanned(),cellHolder.mTextView);
-        MessagePart part = message.getMessageParts().get(0);
-        String text = part.isContentReady() ? new String(part.getData()) : "";
-        Moji.setText(text,cellHolder.mTextView,true);
+        // Apply the Spanned built in parseContent; Moji attaches the spans to the view and only
+        // then starts loading their images, so a rebind never re-parses the HTML.
+        Moji.setText(parsed.getSpanned(), cellHolder.mTextView);
         cellHolder.mTextView.setTag(parsed);
         cellHolder.mTextView.setOnLongClickListener(this);
+        cellHolder.mTextView.setOnClickListener(parsed.isTruncated() ? this : null);
     }
 
     /**
-     * Long click copies message text and sender name to clipboard
+     * Click on a truncated message shows more of it, parsed in the background.
+     */
+    @Override
+    public void onClick(final View v) {
+        final TextInfo parsed = (TextInfo) v.getTag();
+        if (parsed == null || !parsed.isTruncated()) return;
+        final Message message = parsed.getMessage();
+        final String id = message.getId().toString();
+        if (!mExpanding.add(id)) return;
+        final int maxChars = (int) Math.min(MessagePartText.UNLIMITED, (long) parsed.getMaxChars() * EXPAND_FACTOR);
+        boolean queued = execute(new Runnable() {
+            @Override
+            public void run() {
+                TextInfo result = null;
+                try {
+                    result = parseText(message, parsed.getClipboardPrefix(), maxChars);
+                } catch (Exception e) {
+                    if (Log.isLoggable(Log.ERROR)) Log.e("Failed to expand " + id, e);
+                }
+                final TextInfo expanded = result;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mExpanding.remove(id);
+                        if (expanded == null) return;
+                        mTextInfoCache.put(id, expanded);
+                        // The view may have been recycled for another message meanwhile.
+                        if (v.getTag() != parsed) return;
+                        Moji.setText(expanded.getSpanned(), (TextView) v);
+                        v.setTag(expanded);
+                        if (!expanded.isTruncated()) v.setOnClickListener(null);
+                    }
+                });
+            }
+        });
+        if (!queued) mExpanding.remove(id);
+    }
+
+    /**
+     * Long click copies message text and sender name to clipboard.  A truncated message's full
+     * text is read in the background first.
      */
     @Override
     public boolean onLongClick(View v) {
         TextInfo parsed = (TextInfo) v.getTag();
-        String text = parsed.getmHtml();
-        Util.copyToClipboard(v.getContext(), com.layer.atlas.R.string.atlas_text_cell_factory_clipboard_description, text);
-        Toast.makeText(v.getContext(), com.layer.atlas.R.string.atlas_text_cell_factory_copied_to_clipboard, Toast.LENGTH_SHORT).show();
+        if (parsed == null) return false;
+        final Context context = v.getContext().getApplicationContext();
+        if (parsed.getmHtml() != null && !parsed.isTruncated()) {
+            copyToClipboard(context, parsed.getmHtml());
+            return true;
+        }
+        final Message message = parsed.getMessage();
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final String text;
+                try {
+                    text = MessagePartText.read(message.getMessageParts().get(0));
+                } catch (Exception e) {
+                    if (Log.isLoggable(Log.ERROR)) Log.e("Failed to read " + message.getId() + " for the clipboard", e);
+                    return;
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        copyToClipboard(context, text);
+                    }
+                });
+            }
+        });
         return true;
     }
 
+    private static void copyToClipboard(Context context, String text) {
+        Util.copyToClipboard(context, com.layer.atlas.R.string.atlas_text_cell_factory_clipboard_description, text);
+        Toast.makeText(context, com.layer.atlas.R.string.atlas_text_cell_factory_copied_to_clipboard, Toast.LENGTH_SHORT).show();
+    }
+
     public static class CellHolder extends AtlasCellFactory.CellHolder {
-        TextView mTextView;
+        MojiBubbleTextView mTextView;
 
         public CellHolder(View view,HyperMojiListener hyperMojiListener) {
-            mTextView = (TextView) view.findViewById(com.layer.atlas.R.id.cell_text);
+            mTextView = (MojiBubbleTextView) view.findViewById(com.layer.atlas.R.id.cell_text);
             mTextView.setTag(com.makemoji.mojilib.R.id._makemoji_hypermoji_listener_tag_id,hyperMojiListener);
         }
     }
 
+    /**
+     * LruCache of parsed messages keyed by message ID and weighed by TextInfo.sizeOf().  Hits,
+     * misses, and evictions are available from the LruCache counters.
+     */
+    public static class TextInfoCache extends LruCache<String, TextInfo> {
+        public TextInfoCache(int maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int sizeOf(String key, TextInfo value) {
+            return value.sizeOf();
+        }
+    }
+
     public static class TextInfo implements AtlasCellFactory.ParsedContent {
+        // Rough ART/Dalvik costs: object header plus fields, and UTF-16 chars.
+        private final static int OBJECT_OVERHEAD = 16;
+        private final static int STRING_OVERHEAD = 40;
+        // A span object plus its start, end, and flags entries in the Spanned's span arrays.
+        private final static int SPAN_OVERHEAD = 48;
+        // A MojiSpan also retains its source URL, link, placeholder drawable, and bounds.
+        private final static int EMOJI_OVERHEAD = 768;
+
+        // Null when built from MojiTokens
         private final String mHtml;
         private final Spanned mSpanned;
         private final String mClipboardPrefix;
+        // Set when the body was truncated, to decode more of it on demand, or when there is no
+        // HTML, to read it for the clipboard.
+        private final Message mMessage;
+        private final boolean mTruncated;
+        private final int mMaxChars;
         private final int mSize;
 
         public TextInfo(String html,Spanned spanned, String clipboardPrefix) {
+            this(html, spanned, clipboardPrefix, null, MessagePartText.UNLIMITED);
+        }
+
+        public TextInfo(String html, Spanned spanned, String clipboardPrefix, Message truncatedMessage, int maxChars) {
+            this(html, spanned, clipboardPrefix, truncatedMessage, truncatedMessage != null, maxChars);
+        }
+
+        /**
+         * Creates a TextInfo for a message built from its MojiTokens part.
+         */
+        public TextInfo(Spanned spanned, String clipboardPrefix, Message message) {
+            this(null, spanned, clipboardPrefix, message, false, MessagePartText.UNLIMITED);
+        }
+
+        private TextInfo(String html, Spanned spanned, String clipboardPrefix, Message message, boolean truncated, int maxChars) {
             mHtml = html;
             mSpanned = spanned;
             mClipboardPrefix = clipboardPrefix;
-            mSize = mSpanned.toString().getBytes().length + mClipboardPrefix.getBytes().length;
+            mMessage = message;
+            mTruncated = truncated;
+            mMaxChars = maxChars;
+            mSize = OBJECT_OVERHEAD + sizeOf(mHtml) + sizeOf(mClipboardPrefix) + sizeOf(mSpanned);
+        }
+
+        static int sizeOf(String string) {
+            return string == null ? 0 : STRING_OVERHEAD + 2 * string.length();
+        }
+
+        /**
+         * Estimates the heap retained by a Spanned: its characters, every span, and the extra
+         * state held by emoji spans.
+         */
+        static int sizeOf(Spanned spanned) {
+            if (spanned == null) return 0;
+            int length = spanned.length();
+            int spans = spanned.getSpans(0, length, Object.class).length;
+            int emoji = spanned.getSpans(0, length, MojiSpan.class).length;
+            return STRING_OVERHEAD + 2 * length + spans * SPAN_OVERHEAD + emoji * EMOJI_OVERHEAD;
         }
 
         public Spanned getSpanned() {
@@ -137,6 +410,18 @@ public class MakeMojiCellFactory extends AtlasCellFactory<MakeMojiCellFactory.Ce
             return mClipboardPrefix;
         }
 
+        public boolean isTruncated() {
+            return mTruncated;
+        }
+
+        Message getMessage() {
+            return mMessage;
+        }
+
+        int getMaxChars() {
+            return mMaxChars;
+        }
+
         @Override
         public int sizeOf() {
             return mSize;
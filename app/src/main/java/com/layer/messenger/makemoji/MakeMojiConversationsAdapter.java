@@ -1,29 +1,41 @@
 package com.layer.messenger.makemoji;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v7.widget.RecyclerView;
+import android.text.Spanned;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.layer.atlas.AtlasAvatar;
 import com.layer.atlas.adapters.AtlasBaseAdapter;
 import com.layer.atlas.provider.ParticipantProvider;
 import com.layer.atlas.util.ConversationStyle;
-import com.layer.atlas.util.Util;
+import com.layer.messenger.App;
+import com.layer.messenger.util.ConversationTitleCache;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.messaging.Conversation;
-import com.layer.sdk.messaging.Message;
 import com.layer.sdk.query.Predicate;
 import com.layer.sdk.query.Query;
 import com.layer.sdk.query.RecyclerViewController;
 import com.layer.sdk.query.SortDescriptor;
+import com.makemoji.mojilib.Moji;
 import com.squareup.picasso.Picasso;
 
-import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * A copy paste of the AtlasConversationAdapter so that we can insert logic to render a preview of the makemoji conversation where appropriate.
@@ -34,15 +46,91 @@ import java.util.HashSet;
         protected final LayerClient mLayerClient;
         protected final ParticipantProvider mParticipantProvider;
         protected final Picasso mPicasso;
+        private final Query<Conversation> mQuery;
         private final RecyclerViewController<Conversation> mQueryController;
         private final LayoutInflater mInflater;
-        private long mInitialHistory = 0;
+        private final HistoricSyncScheduler mHistoricSyncScheduler;
+
+        // Rows currently shown; replaced (never mutated) on the main thread when a diff lands.
+        private volatile List<ConversationListDiffer.Row> mRows = ConversationListDiffer.emptyRows();
+        // Query controller position of each row, which differs from the row's position while a
+        // filter is set.
+        private int[] mQueryPositions = new int[0];
+        private final ExecutorService mDiffExecutor = Executors.newSingleThreadExecutor();
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+        private boolean mDiffRunning = false;
+        private boolean mDiffDirty = false;
+        private final Set<Uri> mChangedIds = new HashSet<Uri>();
+        // Set when the query's membership or order may have changed since its IDs were read.
+        private boolean mIdsStale = true;
+        // Controller inserts, removals, and moves since the last diff, applied to mQueryIds in order
+        private final List<IdChange> mIdChanges = new ArrayList<IdChange>();
+        // Ordered query result IDs; diff thread only
+        private List<Uri> mQueryIds = new ArrayList<Uri>();
+        private boolean mDestroyed = false;
+        private final Map<Uri, Long> mStableIds = new HashMap<Uri, Long>();
+        private long mNextStableId = 0;
+
+        // Conversations within WINDOW_RADIUS rows of the window center are loaded; the rest of
+        // the list is held as conversation IDs only.  The center follows the bound position.
+        private final static int WINDOW_RADIUS = 60;
+        private final static int WINDOW_SLACK = WINDOW_RADIUS / 3;
+        private volatile int mWindowCenter = 0;
+
+        // The query controller is told the bound position once it moves this far, which is
+        // plenty for its paging and keeps rebinds nearby from calling into it.
+        private final static int BOUND_POSITION_STEP = 8;
+        private int mReportedQueryPosition = -BOUND_POSITION_STEP;
+
+        // Conversation IDs to show, or null to show every conversation
+        private volatile Set<Uri> mFilter;
+
+        private final MakeMojiPreviewCache mPreviewCache = App.getMakeMojiPreviewCache();
+        private final Set<ViewHolder> mBoundHolders = new HashSet<ViewHolder>();
+        private final MakeMojiPreviewCache.Callback mPreviewCallback = new MakeMojiPreviewCache.Callback() {
+            @Override
+            public void onPreviewRendered(String key, Spanned preview) {
+                for (ViewHolder holder : mBoundHolders) {
+                    if (key.equals(holder.mPreviewKey)) holder.setMojiMessage(preview);
+                }
+            }
+        };
+
+        private final AvatarClusterCache mAvatarClusterCache = App.getAvatarClusterCache();
+        private final ConversationTitleCache mTitleCache = App.getConversationTitleCache();
+        private final ConversationTitleCache.Listener mTitleListener = new ConversationTitleCache.Listener() {
+            @Override
+            public void onTitlesInvalidated(Collection<Uri> conversationIds) {
+                // Rebind the titles of listed rows even though their captured fields are equal.
+                mChangedIds.addAll(conversationIds);
+                scheduleDiff();
+            }
+        };
+        private final AvatarClusterCache.Listener mAvatarListener = new AvatarClusterCache.Listener() {
+            @Override
+            public void onClustersInvalidated(Collection<String> keys) {
+                // Rows off screen miss the cache on their next bind anyway.
+                for (ViewHolder holder : mBoundHolders) {
+                    if (holder.mAvatarKey == null || !keys.contains(holder.mAvatarKey)) continue;
+                    int position = holder.getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) notifyItemChanged(position, ConversationListDiffer.CHANGED_PARTICIPANTS);
+                }
+            }
+        };
+        private final AvatarClusterCache.Callback mAvatarCallback = new AvatarClusterCache.Callback() {
+            @Override
+            public void onClusterRendered(String key, Bitmap cluster) {
+                for (ViewHolder holder : mBoundHolders) {
+                    if (key.equals(holder.mAvatarKey)) holder.setAvatar(cluster);
+                }
+            }
+        };
 
         private OnConversationClickListener mConversationClickListener;
         private ViewHolder.OnClickListener mViewHolderClickListener;
 
-        private final DateFormat mDateFormat;
-        private final DateFormat mTimeFormat;
+        private final Context mContext;
+        private final ConversationTimeLabels mTimeLabels;
         private ConversationStyle conversationStyle;
 
         public MakeMojiConversationsAdapter(Context context, LayerClient client, ParticipantProvider participantProvider, Picasso picasso) {
@@ -50,83 +138,86 @@ import java.util.HashSet;
         }
 
         public MakeMojiConversationsAdapter(Context context, LayerClient client, ParticipantProvider participantProvider, Picasso picasso, Collection<String> updateAttributes) {
-            Query<Conversation> query = Query.builder(Conversation.class)
+            mQuery = Query.builder(Conversation.class)
                 /* Only show conversations we're still a member of */
                     .predicate(new Predicate(Conversation.Property.PARTICIPANT_COUNT, Predicate.Operator.GREATER_THAN, 1))
 
                 /* Sort by the last Message's receivedAt time */
                     .sortDescriptor(new SortDescriptor(Conversation.Property.LAST_MESSAGE_RECEIVED_AT, SortDescriptor.Order.DESCENDING))
                     .build();
-            mQueryController = client.newRecyclerViewController(query, updateAttributes, this);
+            mQueryController = client.newRecyclerViewController(mQuery, updateAttributes, this);
             mLayerClient = client;
+            mHistoricSyncScheduler = App.getHistoricSyncScheduler();
             mParticipantProvider = participantProvider;
             mPicasso = picasso;
             mInflater = LayoutInflater.from(context);
-            mDateFormat = android.text.format.DateFormat.getDateFormat(context);
-            mTimeFormat = android.text.format.DateFormat.getTimeFormat(context);
+            mContext = context.getApplicationContext();
+            mTimeLabels = new ConversationTimeLabels(context);
             mViewHolderClickListener = new ViewHolder.OnClickListener() {
                 @Override
                 public void onClick(ViewHolder viewHolder) {
-                    if (mConversationClickListener == null) return;
+                    if (mConversationClickListener == null || viewHolder.getConversation() == null) return;
                     mConversationClickListener.onConversationClick(MakeMojiConversationsAdapter.this, viewHolder.getConversation());
                 }
 
                 @Override
                 public boolean onLongClick(ViewHolder viewHolder) {
-                    if (mConversationClickListener == null) return false;
+                    if (mConversationClickListener == null || viewHolder.getConversation() == null) return false;
                     return mConversationClickListener.onConversationLongClick(MakeMojiConversationsAdapter.this, viewHolder.getConversation());
                 }
             };
-            setHasStableIds(false);
+            setHasStableIds(true);
         }
 
         /**
          * Refreshes this adapter by re-running the underlying Query.
          */
         public void refresh() {
+            if (mDestroyed) return;
+            markIdsStale();
             mQueryController.execute();
         }
 
+        /**
+         * Stops the diff thread and unregisters from the shared caches.  Call from the hosting
+         * Activity's onDestroy; the adapter shows nothing new afterwards.
+         */
+        public void destroy() {
+            if (mDestroyed) return;
+            mDestroyed = true;
+            mDiffExecutor.shutdownNow();
+            mMainHandler.removeCallbacksAndMessages(null);
+            mTitleCache.removeListener(mTitleListener);
+            mAvatarClusterCache.removeListener(mAvatarListener);
+            mPreviewCache.removeCallback(mPreviewCallback);
+        }
+
 
         //==============================================================================================
         // Initial message history
         //==============================================================================================
 
         public MakeMojiConversationsAdapter setInitialHistoricMessagesToFetch(long initialHistory) {
-            mInitialHistory = initialHistory;
+            mHistoricSyncScheduler.setDesiredHistory(initialHistory);
             return this;
         }
 
-        public void setStyle(ConversationStyle conversationStyle) {
-            this.conversationStyle = conversationStyle;
+        /**
+         * Limits the list to the given conversations, e.g. search results.
+         *
+         * @param conversationIds IDs of conversations to show, or null to show all.
+         */
+        public MakeMojiConversationsAdapter setFilter(Set<Uri> conversationIds) {
+            mFilter = conversationIds;
+            mWindowCenter = 0;
+            scheduleDiff();
+            return this;
         }
 
-        private void syncInitialMessages(final int start, final int length) {
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    long desiredHistory = mInitialHistory;
-                    if (desiredHistory <= 0) return;
-                    for (int i = start; i < start + length; i++) {
-                        try {
-                            final Conversation conversation = getItem(i);
-                            if (conversation == null || conversation.getHistoricSyncStatus() != Conversation.HistoricSyncStatus.MORE_AVAILABLE) {
-                                continue;
-                            }
-                            Query<Message> localCountQuery = Query.builder(Message.class)
-                                    .predicate(new Predicate(Message.Property.CONVERSATION, Predicate.Operator.EQUAL_TO, conversation))
-                                    .build();
-                            long delta = desiredHistory - mLayerClient.executeQueryForCount(localCountQuery);
-                            if (delta > 0) conversation.syncMoreHistoricMessages((int) delta);
-                        } catch (IndexOutOfBoundsException e) {
-                            // Concurrent modification
-                        }
-                    }
-                }
-            }).start();
+        public void setStyle(ConversationStyle conversationStyle) {
+            this.conversationStyle = conversationStyle;
         }
 
-
         //==============================================================================================
         // Listeners
         //==============================================================================================
@@ -145,62 +236,211 @@ import java.util.HashSet;
         public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
             ViewHolder viewHolder = new ViewHolder(mInflater.inflate(ViewHolder.RESOURCE_ID, parent, false), conversationStyle);
             viewHolder.setClickListener(mViewHolderClickListener);
-            viewHolder.mAvatarCluster
-                    .init(mParticipantProvider, mPicasso)
-                    .setStyle(conversationStyle.getAvatarStyle());
+            mBoundHolders.add(viewHolder);
             return viewHolder;
         }
 
+        @Override
+        public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+            mTitleCache.addListener(mTitleListener);
+            mAvatarClusterCache.addListener(mAvatarListener);
+        }
+
+        @Override
+        public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+            mTitleCache.removeListener(mTitleListener);
+            mAvatarClusterCache.removeListener(mAvatarListener);
+        }
+
+        @Override
+        public void onViewRecycled(ViewHolder holder) {
+            holder.mPreviewKey = null;
+            holder.mAvatarKey = null;
+        }
+
+        /**
+         * Binds from the row snapshot, which already holds the participant set, preview key or
+         * text, and time label; views are only touched when what they show changed.  In steady
+         * state a bind allocates nothing.
+         */
         @Override
         public void onBindViewHolder(ViewHolder viewHolder, int position) {
-            mQueryController.updateBoundPosition(position);
-            Conversation conversation = mQueryController.getItem(position);
-            Message lastMessage = conversation.getLastMessage();
-            Context context = viewHolder.itemView.getContext();
-
-            viewHolder.setConversation(conversation);
-            HashSet<String> participantIds = new HashSet<String>(conversation.getParticipants());
-            participantIds.remove(mLayerClient.getAuthenticatedUserId());
-            viewHolder.mAvatarCluster.setParticipants(participantIds);
-            viewHolder.mTitleView.setText(Util.getConversationTitle(mLayerClient, mParticipantProvider, conversation));
-            viewHolder.applyStyle(conversation.getTotalUnreadMessageCount() > 0);
-
-            if (lastMessage == null) {
-                viewHolder.mMessageView.setText(null);
-                viewHolder.mTimeView.setText(null);
-            } else {
-                //custom logic here
-                if (MakeMojiCellFactory.isType(lastMessage))
-                    MakeMojiCellFactory.setMessagePreview(viewHolder.mMessageView,lastMessage);
-                else {
-                    viewHolder.mMessageView.setText(Util.getLastMessageString(context, lastMessage));
-                }
-                if (lastMessage.getReceivedAt() == null) {
-                    viewHolder.mTimeView.setText(null);
-                } else {
-                    viewHolder.mTimeView.setText(Util.formatTime(context, lastMessage.getReceivedAt(), mTimeFormat, mDateFormat));
+            ConversationListDiffer.Row row = mRows.get(position);
+            moveWindow(position, row);
+            if (!row.isLoaded()) {
+                bindPlaceholder(viewHolder, row);
+                return;
+            }
+            // On-screen conversations get their initial history ahead of the rest.
+            mHistoricSyncScheduler.request(row.id, row.conversation, true);
+            updateBoundPosition(position);
+
+            viewHolder.setConversation(row.conversation);
+            bindAvatar(viewHolder, row);
+            bindTitle(viewHolder, row);
+            viewHolder.applyStyle(row.unreadCount > 0);
+            bindLastMessage(viewHolder, row);
+            bindTime(viewHolder, row);
+        }
+
+        /**
+         * Rebinds only the parts of the row named by ConversationListDiffer.CHANGED_* payloads,
+         * e.g. just the unread style for a read receipt.
+         */
+        @Override
+        public void onBindViewHolder(ViewHolder viewHolder, int position, List<Object> payloads) {
+            if (payloads.isEmpty()) {
+                onBindViewHolder(viewHolder, position);
+                return;
+            }
+            int changes = 0;
+            for (int i = 0; i < payloads.size(); i++) {
+                Object payload = payloads.get(i);
+                if (!(payload instanceof Integer)) {
+                    onBindViewHolder(viewHolder, position);
+                    return;
                 }
+                changes |= (Integer) payload;
+            }
+
+            ConversationListDiffer.Row row = mRows.get(position);
+            if (!row.isLoaded()) {
+                onBindViewHolder(viewHolder, position);
+                return;
+            }
+            updateBoundPosition(position);
+            viewHolder.setConversation(row.conversation);
+            if ((changes & ConversationListDiffer.CHANGED_PARTICIPANTS) != 0) {
+                bindAvatar(viewHolder, row);
+            }
+            if ((changes & ConversationListDiffer.CHANGED_TITLE) != 0) bindTitle(viewHolder, row);
+            if ((changes & ConversationListDiffer.CHANGED_UNREAD) != 0) {
+                viewHolder.applyStyle(row.unreadCount > 0);
+            }
+            if ((changes & ConversationListDiffer.CHANGED_LAST_MESSAGE) != 0) bindLastMessage(viewHolder, row);
+            if ((changes & ConversationListDiffer.CHANGED_TIME) != 0) bindTime(viewHolder, row);
+        }
+
+        /**
+         * Tells the query controller which of its items is bound, by its own position, once it
+         * moved BOUND_POSITION_STEP from the last position it was told.
+         */
+        private void updateBoundPosition(int position) {
+            int[] queryPositions = mQueryPositions;
+            if (position >= queryPositions.length) return;
+            int queryPosition = queryPositions[position];
+            if (Math.abs(queryPosition - mReportedQueryPosition) < BOUND_POSITION_STEP) return;
+            mReportedQueryPosition = queryPosition;
+            mQueryController.updateBoundPosition(queryPosition);
+        }
+
+        /**
+         * Shows an empty row until the window slides over it and it is loaded.
+         */
+        private void bindPlaceholder(ViewHolder viewHolder, ConversationListDiffer.Row row) {
+            viewHolder.mPreviewKey = null;
+            viewHolder.setConversation(null);
+            viewHolder.mAvatarKey = null;
+            viewHolder.setAvatar(null);
+            viewHolder.setTitle(null);
+            viewHolder.applyStyle(false);
+            viewHolder.setMessage(null);
+            viewHolder.setTime(null);
+        }
+
+        /**
+         * Shows the row's cached avatar cluster, or renders it in the background and shows it then.
+         */
+        private void bindAvatar(ViewHolder viewHolder, ConversationListDiffer.Row row) {
+            if (row.avatarKey == null) {
+                row.avatarKey = AvatarClusterCache.key(row.participantsKey, viewHolder.mAvatarSize);
+            }
+            viewHolder.mAvatarKey = row.avatarKey;
+            Bitmap cluster = mAvatarClusterCache.get(row.avatarKey);
+            viewHolder.setAvatar(cluster);
+            if (cluster == null) {
+                mAvatarClusterCache.request(row.avatarKey, row.otherParticipantIds, viewHolder.mAvatarSize, conversationStyle.getAvatarStyle(), mAvatarCallback);
+            }
+        }
+
+        private void bindTitle(ViewHolder viewHolder, ConversationListDiffer.Row row) {
+            // Looked up by the row's ID first, so a cached title needs no call into the conversation.
+            String title = mTitleCache.peek(row.id);
+            if (title == null) title = mTitleCache.get(mLayerClient, mParticipantProvider, row.conversation);
+            viewHolder.setTitle(title);
+        }
+
+        private void bindLastMessage(ViewHolder viewHolder, ConversationListDiffer.Row row) {
+            viewHolder.mPreviewKey = row.previewKey;
+            if (row.previewKey == null) {
+                viewHolder.setMessage(row.lastMessageText);
+                return;
+            }
+
+            //custom logic here
+            // Apply a cached preview, or render it in the background and apply it then.
+            Spanned preview = mPreviewCache.get(row.previewKey);
+            if (preview != null) {
+                viewHolder.setMojiMessage(preview);
+            } else {
+                viewHolder.setMessage(null);
+                mPreviewCache.request(row.previewKey, row.lastMessage, mPreviewCallback);
+            }
+        }
+
+        private void bindTime(ViewHolder viewHolder, ConversationListDiffer.Row row) {
+            if (row.timeLabel == null) {
+                viewHolder.setTime(null);
+            } else if (row.timeLabelDay == mTimeLabels.today()) {
+                viewHolder.setTime(row.timeLabel);
+            } else {
+                // The day rolled over since the snapshot; relabel once per bucket.
+                viewHolder.setTime(mTimeLabels.get(row.lastMessageReceivedAt));
             }
         }
 
         @Override
         public int getItemCount() {
-            return mQueryController.getItemCount();
+            return mRows.size();
+        }
+
+        /**
+         * Stable IDs are assigned per conversation Uri for the lifetime of this adapter, so they
+         * never collide the way hashed Uris could.
+         */
+        @Override
+        public long getItemId(int position) {
+            Uri id = mRows.get(position).id;
+            Long stableId = mStableIds.get(id);
+            if (stableId == null) {
+                stableId = mNextStableId++;
+                mStableIds.put(id, stableId);
+            }
+            return stableId;
         }
 
         @Override
         public Integer getPosition(Conversation conversation) {
-            return mQueryController.getPosition(conversation);
+            return getPosition(conversation, 0);
         }
 
         @Override
         public Integer getPosition(Conversation conversation, int lastPosition) {
-            return mQueryController.getPosition(conversation, lastPosition);
+            List<ConversationListDiffer.Row> rows = mRows;
+            Uri id = conversation.getId();
+            if (lastPosition >= 0 && lastPosition < rows.size() && rows.get(lastPosition).id.equals(id)) {
+                return lastPosition;
+            }
+            for (int i = 0; i < rows.size(); i++) {
+                if (rows.get(i).id.equals(id)) return i;
+            }
+            return null;
         }
 
         @Override
         public Conversation getItem(int position) {
-            return mQueryController.getItem(position);
+            ConversationListDiffer.Row row = mRows.get(position);
+            return row.isLoaded() ? row.conversation : mLayerClient.getConversation(row.id);
         }
 
         @Override
@@ -209,51 +449,256 @@ import java.util.HashSet;
         }
 
 
+        //==============================================================================================
+        // Diffing
+        //==============================================================================================
+
+        /**
+         * Snapshots the query results and diffs them against the current rows on a background
+         * thread.  Requests made while a diff is running are coalesced into one follow-up diff.
+         */
+        private void scheduleDiff() {
+            if (mDestroyed) return;
+            if (mDiffRunning) {
+                mDiffDirty = true;
+                return;
+            }
+            mDiffRunning = true;
+            mDiffDirty = false;
+            final List<ConversationListDiffer.Row> oldRows = mRows;
+            final Set<Uri> changedIds = new HashSet<Uri>(mChangedIds);
+            mChangedIds.clear();
+            final boolean idsStale = mIdsStale;
+            mIdsStale = false;
+            final List<IdChange> idChanges = new ArrayList<IdChange>(mIdChanges);
+            mIdChanges.clear();
+            final int queryCount = mQueryController.getItemCount();
+            mDiffExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (idsStale || !applyIdChanges(idChanges, queryCount)) mQueryIds = queryIds();
+                    final List<ConversationListDiffer.Row> newRows = new ArrayList<ConversationListDiffer.Row>();
+                    final int[] queryPositions = snapshotRows(oldRows, newRows);
+                    final ConversationListDiffer.Result result = ConversationListDiffer.diff(oldRows, newRows, changedIds);
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            applyDiff(newRows, queryPositions, result);
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Reads the ordered IDs of the query's conversations.  Only needed when the query is
+         * re-run or the controller's changes could not be applied to the last IDs.
+         */
+        @SuppressWarnings("unchecked")
+        private List<Uri> queryIds() {
+            List results = mLayerClient.executeQuery(mQuery, Query.ResultType.IDENTIFIERS);
+            return results == null ? new ArrayList<Uri>() : new ArrayList<Uri>(results);
+        }
+
+        /**
+         * Applies the controller's inserts, removals, and moves to the last query IDs.  Returns
+         * `false` if they don't fit, e.g. the last IDs were read after some of them happened, in
+         * which case the IDs must be read again.
+         *
+         * @param queryCount The controller's item count once the changes were made.
+         */
+        private boolean applyIdChanges(List<IdChange> changes, int queryCount) {
+            List<Uri> ids = mQueryIds;
+            for (IdChange change : changes) {
+                if (change.position < 0 || change.position + change.removeCount > ids.size()) return false;
+                if (change.removeCount > 0) ids.subList(change.position, change.position + change.removeCount).clear();
+                if (change.position > ids.size()) return false;
+                if (change.inserted != null) ids.addAll(change.position, change.inserted);
+            }
+            return ids.size() == queryCount;
+        }
+
+        /**
+         * Snapshots the ordered conversation IDs of the query into rows, loading full rows only
+         * for those inside the window.  Conversations are resolved by ID, so the full result set
+         * is never materialized.
+         *
+         * @return The query position of each row.
+         */
+        private int[] snapshotRows(List<ConversationListDiffer.Row> oldRows, List<ConversationListDiffer.Row> rows) {
+            Map<Uri, ConversationListDiffer.Row> previous = new HashMap<Uri, ConversationListDiffer.Row>(oldRows.size() * 2);
+            for (ConversationListDiffer.Row row : oldRows) previous.put(row.id, row);
+            String authenticatedUserId = mLayerClient.getAuthenticatedUserId();
+
+            List<Uri> queryIds = mQueryIds;
+            Set<Uri> filter = mFilter;
+            List<Uri> ids = new ArrayList<Uri>(queryIds.size());
+            int[] queryPositions = new int[queryIds.size()];
+            for (int i = 0; i < queryIds.size(); i++) {
+                Uri id = queryIds.get(i);
+                if (filter != null && !filter.contains(id)) continue;
+                queryPositions[ids.size()] = i;
+                ids.add(id);
+            }
+            int count = ids.size();
+            int center = Math.min(mWindowCenter, Math.max(count - 1, 0));
+            int windowStart = Math.max(0, center - WINDOW_RADIUS);
+            int windowEnd = Math.min(count, center + WINDOW_RADIUS);
+
+            for (int i = 0; i < count; i++) {
+                Uri id = ids.get(i);
+                ConversationListDiffer.Row before = previous.get(id);
+                if (i < windowStart || i >= windowEnd) {
+                    rows.add(before != null && !before.isLoaded() ? before : new ConversationListDiffer.Row(id));
+                    continue;
+                }
+                Conversation conversation = (before != null && before.isLoaded()) ? before.conversation : mLayerClient.getConversation(id);
+                if (conversation == null || conversation.isDeleted()) {
+                    // Removed since the ID query; the follow-up change callback catches up.
+                    rows.add(new ConversationListDiffer.Row(id));
+                    continue;
+                }
+                rows.add(new ConversationListDiffer.Row(conversation, before, authenticatedUserId, mContext, mTimeLabels));
+            }
+            return queryPositions;
+        }
+
+        /**
+         * Recenters the loaded window on a bound position when it binds a placeholder or nears
+         * the window's edge, loading the rows around it with the next snapshot.
+         */
+        private void moveWindow(int position, ConversationListDiffer.Row row) {
+            int center = mWindowCenter;
+            if (row.isLoaded() && Math.abs(position - center) < WINDOW_RADIUS - WINDOW_SLACK) return;
+            if (position == center) return;
+            mWindowCenter = position;
+            scheduleDiff();
+        }
+
+        private void applyDiff(List<ConversationListDiffer.Row> newRows, int[] queryPositions, ConversationListDiffer.Result result) {
+            if (mDestroyed) return;
+            mRows = newRows;
+            mQueryPositions = queryPositions;
+            pruneStableIds(newRows);
+            result.dispatchTo(this);
+            for (int position : result.getInsertedPositions()) {
+                ConversationListDiffer.Row row = newRows.get(position);
+                mHistoricSyncScheduler.request(row.id, row.conversation, false);
+            }
+            mDiffRunning = false;
+            if (mDiffDirty) scheduleDiff();
+        }
+
+        /**
+         * Forgets the stable IDs of conversations that are no longer listed once they outnumber
+         * the listed ones.  A conversation that comes back gets a new ID, as a new row.
+         */
+        private void pruneStableIds(List<ConversationListDiffer.Row> rows) {
+            if (mStableIds.size() <= Math.max(WINDOW_RADIUS, rows.size() * 2)) return;
+            Set<Uri> listed = new HashSet<Uri>(rows.size() * 2);
+            for (ConversationListDiffer.Row row : rows) listed.add(row.id);
+            mStableIds.keySet().retainAll(listed);
+        }
+
+        /**
+         * Makes the next diff read the query IDs again instead of applying controller changes.
+         */
+        private void markIdsStale() {
+            mIdsStale = true;
+            mIdChanges.clear();
+        }
+
+        /**
+         * Queues a controller change to the query IDs, reading the IDs of inserted conversations
+         * from the controller, which already holds them.
+         */
+        private void addIdChange(int position, int removeCount, int insertPosition, int insertCount) {
+            if (mIdsStale) return;
+            List<Uri> inserted = null;
+            if (insertCount > 0) {
+                inserted = new ArrayList<Uri>(insertCount);
+                for (int i = insertPosition; i < insertPosition + insertCount; i++) {
+                    Conversation conversation;
+                    try {
+                        conversation = mQueryController.getItem(i);
+                    } catch (IndexOutOfBoundsException e) {
+                        conversation = null;
+                    }
+                    if (conversation == null) {
+                        markIdsStale();
+                        return;
+                    }
+                    inserted.add(conversation.getId());
+                }
+            }
+            if (removeCount > 0) mIdChanges.add(new IdChange(position, removeCount, null));
+            if (inserted != null) mIdChanges.add(new IdChange(insertPosition, 0, inserted));
+        }
+
+        /**
+         * Marks the conversation at the given query position for a rebind even if none of the
+         * fields captured in its Row changed (e.g. its metadata title).
+         */
+        private void markChanged(int position) {
+            try {
+                Conversation conversation = mQueryController.getItem(position);
+                if (conversation != null) mChangedIds.add(conversation.getId());
+            } catch (IndexOutOfBoundsException e) {
+                // Concurrent modification
+            }
+        }
+
+
         //==============================================================================================
         // UI update callbacks
         //==============================================================================================
 
         @Override
         public void onQueryDataSetChanged(RecyclerViewController controller) {
-            syncInitialMessages(0, getItemCount());
-            notifyDataSetChanged();
+            markIdsStale();
+            scheduleDiff();
         }
 
         @Override
         public void onQueryItemChanged(RecyclerViewController controller, int position) {
-            notifyItemChanged(position);
+            markChanged(position);
+            scheduleDiff();
         }
 
         @Override
         public void onQueryItemRangeChanged(RecyclerViewController controller, int positionStart, int itemCount) {
-            notifyItemRangeChanged(positionStart, itemCount);
+            for (int i = positionStart; i < positionStart + itemCount; i++) markChanged(i);
+            scheduleDiff();
         }
 
         @Override
         public void onQueryItemInserted(RecyclerViewController controller, int position) {
-            syncInitialMessages(position, 1);
-            notifyItemInserted(position);
+            addIdChange(position, 0, position, 1);
+            scheduleDiff();
         }
 
         @Override
         public void onQueryItemRangeInserted(RecyclerViewController controller, int positionStart, int itemCount) {
-            syncInitialMessages(positionStart, itemCount);
-            notifyItemRangeInserted(positionStart, itemCount);
+            addIdChange(positionStart, 0, positionStart, itemCount);
+            scheduleDiff();
         }
 
         @Override
         public void onQueryItemRemoved(RecyclerViewController controller, int position) {
-            notifyItemRemoved(position);
+            addIdChange(position, 1, position, 0);
+            scheduleDiff();
         }
 
         @Override
         public void onQueryItemRangeRemoved(RecyclerViewController controller, int positionStart, int itemCount) {
-            notifyItemRangeRemoved(positionStart, itemCount);
+            addIdChange(positionStart, itemCount, positionStart, 0);
+            scheduleDiff();
         }
 
         @Override
         public void onQueryItemMoved(RecyclerViewController controller, int fromPosition, int toPosition) {
-            notifyItemMoved(fromPosition, toPosition);
+            addIdChange(fromPosition, 1, toPosition, 1);
+            scheduleDiff();
         }
 
 
@@ -261,19 +706,46 @@ import java.util.HashSet;
         // Inner classes
         //==============================================================================================
 
+        /**
+         * Removes removeCount IDs at position, then inserts the given IDs there.
+         */
+        private static class IdChange {
+            final int position;
+            final int removeCount;
+            final List<Uri> inserted;
+
+            IdChange(int position, int removeCount, List<Uri> inserted) {
+                this.position = position;
+                this.removeCount = removeCount;
+                this.inserted = inserted;
+            }
+        }
+
         static class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener, View.OnLongClickListener {
             // Layout to inflate
             public final static int RESOURCE_ID = com.layer.atlas.R.layout.atlas_conversation_item;
 
             // View cache
             protected TextView mTitleView;
-            protected AtlasAvatar mAvatarCluster;
+            protected ImageView mAvatarView;
+            protected int mAvatarSize;
             protected TextView mMessageView;
             protected TextView mTimeView;
 
             protected ConversationStyle conversationStyle;
             protected Conversation mConversation;
             protected OnClickListener mClickListener;
+            // Preview cache key this row is waiting for or showing, if it shows a MakeMoji preview
+            protected String mPreviewKey;
+            // Avatar cluster cache key this row is waiting for or showing
+            protected String mAvatarKey;
+
+            // What the views currently show, compared by reference to skip redundant updates
+            private Bitmap mBoundAvatar;
+            private String mBoundTitle;
+            private CharSequence mBoundMessage;
+            private String mBoundTime;
+            private int mBoundUnread = -1;
 
             public ViewHolder(View itemView, ConversationStyle conversationStyle) {
                 super(itemView);
@@ -281,7 +753,11 @@ import java.util.HashSet;
                 itemView.setOnLongClickListener(this);
                 this.conversationStyle = conversationStyle;
 
-                mAvatarCluster = (AtlasAvatar) itemView.findViewById(com.layer.atlas.R.id.avatar);
+                mAvatarView = replaceAvatar(itemView.findViewById(com.layer.atlas.R.id.avatar));
+                mAvatarSize = mAvatarView.getLayoutParams().width;
+                if (mAvatarSize <= 0) {
+                    mAvatarSize = itemView.getResources().getDimensionPixelSize(com.layer.atlas.R.dimen.atlas_avatar_item_single);
+                }
                 mTitleView = (TextView) itemView.findViewById(com.layer.atlas.R.id.title);
                 mMessageView = (TextView) itemView.findViewById(com.layer.atlas.R.id.last_message);
                 mTimeView = (TextView) itemView.findViewById(com.layer.atlas.R.id.time);
@@ -289,6 +765,9 @@ import java.util.HashSet;
             }
 
             public void applyStyle(boolean unread) {
+                int state = unread ? 1 : 0;
+                if (mBoundUnread == state) return;
+                mBoundUnread = state;
                 mTitleView.setTextColor(unread ? conversationStyle.getTitleUnreadTextColor() : conversationStyle.getTitleTextColor());
                 mTitleView.setTypeface(unread ? conversationStyle.getTitleUnreadTextTypeface() : conversationStyle.getTitleTextTypeface(), unread ? conversationStyle.getTitleUnreadTextStyle() : conversationStyle.getTitleTextStyle());
                 mMessageView.setTextColor(unread ? conversationStyle.getSubtitleTextColor() : conversationStyle.getSubtitleTextColor());
@@ -297,6 +776,50 @@ import java.util.HashSet;
                 mTimeView.setTypeface(conversationStyle.getDateTextTypeface());
             }
 
+            /**
+             * Swaps the layout's AtlasAvatar for an ImageView showing pre-rendered clusters.
+             */
+            private static ImageView replaceAvatar(View avatar) {
+                ImageView view = new ImageView(avatar.getContext());
+                view.setId(avatar.getId());
+                view.setScaleType(ImageView.ScaleType.FIT_CENTER);
+                ViewGroup parent = (ViewGroup) avatar.getParent();
+                int index = parent.indexOfChild(avatar);
+                parent.removeViewAt(index);
+                parent.addView(view, index, avatar.getLayoutParams());
+                return view;
+            }
+
+            void setAvatar(Bitmap cluster) {
+                if (cluster == mBoundAvatar) return;
+                mBoundAvatar = cluster;
+                mAvatarView.setImageBitmap(cluster);
+            }
+
+            void setTitle(String title) {
+                if (title == mBoundTitle) return;
+                mBoundTitle = title;
+                mTitleView.setText(title);
+            }
+
+            void setMessage(String message) {
+                if (message == mBoundMessage) return;
+                mBoundMessage = message;
+                mMessageView.setText(message);
+            }
+
+            void setMojiMessage(Spanned preview) {
+                if (preview == mBoundMessage) return;
+                mBoundMessage = preview;
+                Moji.setText(preview, mMessageView);
+            }
+
+            void setTime(String time) {
+                if (time == mBoundTime) return;
+                mBoundTime = time;
+                mTimeView.setText(time);
+            }
+
             protected ViewHolder setClickListener(OnClickListener clickListener) {
                 mClickListener = clickListener;
                 return this;
@@ -23,6 +23,7 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Color;
 import android.graphics.Typeface;
+import android.net.Uri;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.helper.ItemTouchHelper;
@@ -38,6 +39,8 @@ import com.layer.sdk.LayerClient;
 import com.layer.sdk.messaging.Conversation;
 import com.squareup.picasso.Picasso;
 
+import java.util.Set;
+
 
 public class MakeMojiConversationsRecyclerView extends RecyclerView {
     MakeMojiConversationsAdapter mAdapter;
@@ -94,6 +97,15 @@ public class MakeMojiConversationsRecyclerView extends RecyclerView {
         return this;
     }
 
+    /**
+     * Convenience pass-through to this list's AtlasConversationsAdapter.
+     *
+     * @see MakeMojiConversationsAdapter#destroy()
+     */
+    public void destroy() {
+        if (mAdapter != null) mAdapter.destroy();
+    }
+
     /**
      * Convenience pass-through to this list's AtlasConversationsAdapter.
      *
@@ -118,6 +130,16 @@ public class MakeMojiConversationsRecyclerView extends RecyclerView {
         return this;
     }
 
+    /**
+     * Convenience pass-through to this list's AtlasConversationsAdapter.
+     *
+     * @see MakeMojiConversationsAdapter#setFilter(Set)
+     */
+    public MakeMojiConversationsRecyclerView setFilter(Set<Uri> conversationIds) {
+        mAdapter.setFilter(conversationIds);
+        return this;
+    }
+
     /**
      * Convenience pass-through to this list's AtlasConversationsAdapter.
      *
@@ -0,0 +1,201 @@
+package com.layer.messenger.makemoji;
+
+import android.os.Process;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+
+import com.layer.atlas.adapters.AtlasBaseAdapter;
+import com.layer.atlas.provider.ParticipantProvider;
+import com.layer.messenger.util.Log;
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.messaging.Conversation;
+import com.layer.sdk.messaging.Message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses MakeMoji messages ahead of the viewport on a small worker pool, so that
+ * MakeMojiCellFactory finds a cached TextInfo and already measured text by the time a cell is
+ * bound instead of running Moji.parseHtml and text measurement on the main thread.
+ * <p/>
+ * Attach it to the messages RecyclerView after the cell factories have been added, and call
+ * setConversation whenever the list's Conversation changes so stale work is dropped.  The cell
+ * factory also reads message bodies for taps on its workers.
+ */
+public class MakeMojiParsePrefetcher extends RecyclerView.OnScrollListener {
+    public static final int DEFAULT_PREFETCH_WINDOW = 20;
+    private static final int WORKER_COUNT = 2;
+
+    private final LayerClient mLayerClient;
+    private final ParticipantProvider mParticipantProvider;
+    private final MakeMojiCellFactory mCellFactory;
+    private final ExecutorService mExecutor;
+
+    // Bumped on every conversation change; queued work from an older generation is skipped.
+    private final AtomicInteger mGeneration = new AtomicInteger(0);
+    private final List<Future<?>> mPending = Collections.synchronizedList(new ArrayList<Future<?>>());
+    private final Set<String> mInFlight = Collections.synchronizedSet(new HashSet<String>());
+
+    private RecyclerView mRecyclerView;
+    private int mPrefetchWindow = DEFAULT_PREFETCH_WINDOW;
+    private int mLastDirection = -1;
+    private int mLastFirst = RecyclerView.NO_POSITION;
+    private int mLastLast = RecyclerView.NO_POSITION;
+
+    public MakeMojiParsePrefetcher(LayerClient layerClient, ParticipantProvider participantProvider, MakeMojiCellFactory cellFactory) {
+        mLayerClient = layerClient;
+        mParticipantProvider = participantProvider;
+        mCellFactory = cellFactory;
+        mExecutor = Executors.newFixedThreadPool(WORKER_COUNT, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "MojiPrefetch-" + mCount.incrementAndGet());
+            }
+        });
+        mCellFactory.setExecutor(mExecutor);
+    }
+
+    /**
+     * Sets how many messages beyond the visible range are parsed in the scroll direction.
+     *
+     * @param prefetchWindow Number of messages to parse ahead of the viewport.
+     * @return This MakeMojiParsePrefetcher.
+     */
+    public MakeMojiParsePrefetcher setPrefetchWindow(int prefetchWindow) {
+        mPrefetchWindow = Math.max(0, prefetchWindow);
+        return this;
+    }
+
+    public MakeMojiParsePrefetcher attach(RecyclerView recyclerView) {
+        if (mRecyclerView != null) mRecyclerView.removeOnScrollListener(this);
+        mRecyclerView = recyclerView;
+        if (mRecyclerView != null) mRecyclerView.addOnScrollListener(this);
+        return this;
+    }
+
+    /**
+     * Cancels outstanding parse work, which belongs to the previous Conversation.
+     *
+     * @param conversation The Conversation now displayed.
+     * @return This MakeMojiParsePrefetcher.
+     */
+    public MakeMojiParsePrefetcher setConversation(Conversation conversation) {
+        mGeneration.incrementAndGet();
+        cancelPending();
+        mLastDirection = -1;
+        mLastFirst = mLastLast = RecyclerView.NO_POSITION;
+        return this;
+    }
+
+    /**
+     * Stops the worker pool.  Must be called when the owning Activity is destroyed.
+     */
+    public void shutdown() {
+        attach(null);
+        mGeneration.incrementAndGet();
+        cancelPending();
+        mExecutor.shutdownNow();
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        // dy == 0 is reported after layout passes; keep the last known direction, which starts
+        // out towards older messages since the list is stacked from the end.
+        if (dy != 0) mLastDirection = dy > 0 ? 1 : -1;
+        prefetch(recyclerView, mLastDirection);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void prefetch(RecyclerView recyclerView, int direction) {
+        if (mPrefetchWindow == 0 || mExecutor.isShutdown()) return;
+        if (!(recyclerView.getLayoutManager() instanceof LinearLayoutManager)) return;
+        if (!(recyclerView.getAdapter() instanceof AtlasBaseAdapter)) return;
+        LinearLayoutManager manager = (LinearLayoutManager) recyclerView.getLayoutManager();
+        AtlasBaseAdapter<Message> adapter = (AtlasBaseAdapter<Message>) recyclerView.getAdapter();
+
+        int first = manager.findFirstVisibleItemPosition();
+        int last = manager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION) return;
+        // Only plan new work when the visible range actually moved.
+        if (first == mLastFirst && last == mLastLast) return;
+        mLastFirst = first;
+        mLastLast = last;
+
+        int start = direction > 0 ? last + 1 : Math.max(0, first - mPrefetchWindow);
+        int end = direction > 0 ? Math.min(recyclerView.getAdapter().getItemCount(), last + 1 + mPrefetchWindow) : first;
+
+        List<Message> messages = new ArrayList<Message>(end - start);
+        for (int i = start; i < end; i++) {
+            try {
+                Message message = adapter.getItem(i);
+                // Undownloaded parts parse to empty text; they are parsed on bind once ready.
+                if (message != null && mCellFactory.isBindable(message) && MakeMojiCellFactory.isContentReady(message)) {
+                    messages.add(message);
+                }
+            } catch (IndexOutOfBoundsException e) {
+                // Footer position or concurrent modification
+            }
+        }
+        // Parse nearest-first so the next cells to appear are ready soonest.
+        if (direction < 0) Collections.reverse(messages);
+        for (Message message : messages) submit(message);
+    }
+
+    private void submit(final Message message) {
+        final String id = message.getId().toString();
+        if (!mInFlight.add(id)) return;
+        final int generation = mGeneration.get();
+        mPending.add(mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (generation != mGeneration.get() || message.isDeleted()) return;
+                    // Returns straight from the factory cache if the message was parsed already.
+                    MakeMojiCellFactory.TextInfo parsed = mCellFactory.getParsedContent(mLayerClient, mParticipantProvider, message);
+                    if (generation != mGeneration.get()) return;
+                    mCellFactory.precomputeLayout(mLayerClient, message, parsed);
+                } catch (Exception e) {
+                    if (Log.isLoggable(Log.ERROR)) Log.e("Failed to prefetch " + id, e);
+                } finally {
+                    mInFlight.remove(id);
+                }
+            }
+        }));
+        pruneDone();
+    }
+
+    private void pruneDone() {
+        synchronized (mPending) {
+            for (int i = mPending.size() - 1; i >= 0; i--) {
+                if (mPending.get(i).isDone()) mPending.remove(i);
+            }
+        }
+    }
+
+    private void cancelPending() {
+        synchronized (mPending) {
+            for (Future<?> future : mPending) {
+                future.cancel(false);
+            }
+            mPending.clear();
+        }
+        mInFlight.clear();
+    }
+}
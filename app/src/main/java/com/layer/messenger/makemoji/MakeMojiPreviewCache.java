@@ -0,0 +1,139 @@
+package com.layer.messenger.makemoji;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.Spanned;
+import android.util.LruCache;
+
+import com.layer.messenger.util.Log;
+import com.layer.sdk.messaging.Message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Conversation list previews of MakeMoji messages, keyed by (conversation ID, last message ID)
+ * and rendered on a background thread, so binding a conversation row only applies a cached
+ * Spanned.  Only the start of each message is decoded and parsed.
+ * <p/>
+ * One instance is shared through App.getMakeMojiPreviewCache(), so previews and the render
+ * thread outlive any one conversation list.
+ */
+public class MakeMojiPreviewCache {
+    private final static int DEFAULT_MAX_PREVIEWS = 256;
+
+    private final LruCache<String, Spanned> mPreviews;
+    // Callbacks waiting for each pending preview
+    private final Map<String, List<Callback>> mPending = new HashMap<String, List<Callback>>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "MojiPreview");
+        }
+    });
+
+    public interface Callback {
+        /**
+         * Called on the main thread once a requested preview is rendered.
+         */
+        void onPreviewRendered(String key, Spanned preview);
+    }
+
+    public MakeMojiPreviewCache() {
+        this(DEFAULT_MAX_PREVIEWS);
+    }
+
+    public MakeMojiPreviewCache(int maxPreviews) {
+        mPreviews = new LruCache<String, Spanned>(maxPreviews);
+    }
+
+    public static String key(Uri conversationId, Message lastMessage) {
+        return conversationId.toString() + '|' + lastMessage.getId().toString();
+    }
+
+    /**
+     * Returns the rendered preview for the key, or null if it has not been rendered yet.
+     */
+    public Spanned get(String key) {
+        return mPreviews.get(key);
+    }
+
+    /**
+     * Returns whether the preview of lastMessage can be rendered.  Until its body is downloaded
+     * a preview would be empty, and it is requested again when the row sees it become ready.
+     */
+    public static boolean isReady(Message lastMessage) {
+        return lastMessage.getMessageParts().get(0).isContentReady();
+    }
+
+    /**
+     * Renders the preview of lastMessage in the background unless it is cached or not ready.  A
+     * callback asking for a pending preview is called when it is rendered.  Must be called on
+     * the main thread.
+     */
+    public void request(final String key, final Message lastMessage, Callback callback) {
+        if (mPreviews.get(key) != null || !isReady(lastMessage)) return;
+        List<Callback> waiting = mPending.get(key);
+        if (waiting != null) {
+            if (!waiting.contains(callback)) waiting.add(callback);
+            return;
+        }
+        waiting = new ArrayList<Callback>(1);
+        waiting.add(callback);
+        mPending.put(key, waiting);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Spanned preview = null;
+                try {
+                    if (!lastMessage.isDeleted()) preview = MakeMojiCellFactory.parseMessagePreview(lastMessage);
+                } catch (Exception e) {
+                    if (Log.isLoggable(Log.ERROR)) Log.e("Failed to render preview " + key, e);
+                }
+                final Spanned rendered = preview;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Callback> waiting = mPending.remove(key);
+                        if (rendered == null) return;
+                        mPreviews.put(key, rendered);
+                        if (waiting == null) return;
+                        for (Callback waitingCallback : waiting) {
+                            waitingCallback.onPreviewRendered(key, rendered);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops calling the callback for pending previews, which still render and are cached.  Must
+     * be called on the main thread.
+     */
+    public void removeCallback(Callback callback) {
+        Iterator<List<Callback>> pending = mPending.values().iterator();
+        while (pending.hasNext()) {
+            pending.next().remove(callback);
+        }
+    }
+
+    public void evictAll() {
+        mPreviews.evictAll();
+    }
+}
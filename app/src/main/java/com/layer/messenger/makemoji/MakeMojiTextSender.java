@@ -0,0 +1,122 @@
+package com.layer.messenger.makemoji;
+
+import com.layer.atlas.messagetypes.text.TextSender;
+import com.layer.atlas.provider.Participant;
+import com.layer.messenger.util.Log;
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.messaging.Message;
+import com.layer.sdk.messaging.MessageOptions;
+import com.layer.sdk.messaging.MessagePart;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * TextSender for MakeMoji HTML that can send large bodies deflated, as
+ * MakeMojiCellFactory.MIME_TYPE_DEFLATE parts.  Emoji-heavy HTML is mostly repeated img markup,
+ * so it typically shrinks several-fold.  Compression is off until a threshold is set, since
+ * clients that predate the deflate type cannot show such messages; smaller bodies, and bodies
+ * that do not shrink, are sent as plain text.
+ * <p/>
+ * With setSendTokens, the body of an unstyled message is followed by a MojiTokens part that lets
+ * receivers render it without parsing its HTML.  The HTML part stays first, so older clients are
+ * unaffected.
+ */
+public class MakeMojiTextSender extends TextSender {
+    public final static int DEFAULT_COMPRESSION_THRESHOLD = 2 * 1024;
+
+    private final int mMaxNotificationLength;
+    // Off by default
+    private int mCompressionThreshold = Integer.MAX_VALUE;
+    private boolean mSendTokens = false;
+
+    public MakeMojiTextSender(int maxNotificationLength) {
+        super(maxNotificationLength);
+        mMaxNotificationLength = maxNotificationLength;
+    }
+
+    /**
+     * Deflates bodies of at least the given number of UTF-8 bytes.
+     *
+     * @param thresholdBytes Minimum body size to compress, e.g. DEFAULT_COMPRESSION_THRESHOLD.
+     * @return This MakeMojiTextSender.
+     */
+    public MakeMojiTextSender setCompressionThreshold(int thresholdBytes) {
+        mCompressionThreshold = thresholdBytes;
+        return this;
+    }
+
+    /**
+     * Sends a MojiTokens part after the HTML body of each message.
+     *
+     * @return This MakeMojiTextSender.
+     */
+    public MakeMojiTextSender setSendTokens(boolean sendTokens) {
+        mSendTokens = sendTokens;
+        return this;
+    }
+
+    @Override
+    public boolean requestSend(String text) {
+        // Empty text is refused by TextSender.
+        if (text == null || text.trim().length() == 0) return super.requestSend(text);
+        byte[] deflated = deflateIfLarge(text);
+        // Styled messages have no tokens; their HTML is the only form.
+        byte[] tokenBytes = mSendTokens ? MojiTokens.encode(text) : null;
+        if (deflated == null && tokenBytes == null) return super.requestSend(text);
+
+        LayerClient layerClient = getLayerClient();
+        MessagePart body = deflated == null
+                ? layerClient.newMessagePart(text)
+                : layerClient.newMessagePart(MakeMojiCellFactory.MIME_TYPE_DEFLATE, deflated);
+        Participant me = getParticipantProvider().getParticipant(layerClient.getAuthenticatedUserId());
+        String myName = me == null ? "" : me.getName();
+        String notification = text.length() < mMaxNotificationLength ? text : text.substring(0, mMaxNotificationLength) + "…";
+        MessageOptions options = new MessageOptions().pushNotificationMessage(myName + ": " + notification);
+
+        Message message;
+        if (tokenBytes != null) {
+            MessagePart tokens = layerClient.newMessagePart(MojiTokens.MIME_TYPE, tokenBytes);
+            message = layerClient.newMessage(options, body, tokens);
+        } else {
+            message = layerClient.newMessage(options, body);
+        }
+        return send(message);
+    }
+
+    /**
+     * Returns the deflated UTF-8 text, or `null` if it is below the threshold or doesn't shrink.
+     */
+    private byte[] deflateIfLarge(String text) {
+        // A char takes at most 3 UTF-8 bytes, so shorter text can skip encoding.
+        if (text.length() * 3L < mCompressionThreshold) return null;
+        try {
+            byte[] bytes = text.getBytes("UTF-8");
+            if (bytes.length < mCompressionThreshold) return null;
+            byte[] deflated = deflate(bytes);
+            if (deflated.length >= bytes.length) return null;
+            if (Log.isLoggable(Log.VERBOSE)) Log.v("Deflated message body from " + bytes.length + " to " + deflated.length + " bytes");
+            return deflated;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater);
+        try {
+            deflaterOut.write(bytes);
+            deflaterOut.finish();
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+}
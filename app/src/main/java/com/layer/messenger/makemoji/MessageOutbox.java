@@ -0,0 +1,427 @@
+package com.layer.messenger.makemoji;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.layer.atlas.messagetypes.MessageSender;
+import com.layer.atlas.provider.ParticipantProvider;
+import com.layer.messenger.util.Log;
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.exceptions.LayerException;
+import com.layer.sdk.listeners.LayerAuthenticationListener;
+import com.layer.sdk.listeners.LayerConnectionListener;
+import com.layer.sdk.messaging.Conversation;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Durable outbox for composed MakeMoji messages, which builds and sends them off the main thread.
+ * Messages are appended to disk when composed and handed to Layer in the order they were
+ * composed as soon as the LayerClient is authenticated, connected or not; Layer then shows them in
+ * the conversation and keeps them until it can deliver them.  The outbox file is rewritten after
+ * each hand-off, so a crash re-sends at most the message being handed off.  Messages composed
+ * before authentication survive process death and are handed off once authenticated.
+ * <p/>
+ * Register with LayerClient.registerConnectionListener() and
+ * LayerClient.registerAuthenticationListener().
+ */
+public class MessageOutbox implements LayerConnectionListener, LayerAuthenticationListener {
+    private final static String FILE_NAME = "outbox.log";
+    private final static int MAX_NOTIFICATION_LENGTH = 20000;
+
+    public interface Listener {
+        /**
+         * Called on the main thread when messages are queued or handed to Layer.
+         *
+         * @param depth         Messages not handed to Layer yet.
+         * @param lastLatencyMs Time from composing to handing off the most recently delivered
+         *                      message, or -1 if none was delivered yet.
+         */
+        void onOutboxChanged(int depth, long lastLatencyMs);
+
+        /**
+         * Called on the main thread when the TextSender refused a message, e.g. because the
+         * MessageSender callback vetoed it.  The message is no longer in the outbox.
+         *
+         * @param conversationId Conversation the message was composed in.
+         * @param html           Serialized MakeMoji text of the message.
+         */
+        void onMessageRefused(Uri conversationId, String html);
+    }
+
+    private static class Entry {
+        final Uri conversationId;
+        final String html;
+        final long composedAt;
+
+        Entry(Uri conversationId, String html, long composedAt) {
+            this.conversationId = conversationId;
+            this.html = html;
+            this.composedAt = composedAt;
+        }
+    }
+
+    private final LayerClient mLayerClient;
+    private final MakeMojiTextSender mTextSender;
+    private final File mFile;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "Outbox");
+        }
+    });
+
+    // Executor thread only
+    private Deque<Entry> mPending;
+    private MessageSender.Callback mMessageSenderCallback;
+
+    private volatile int mDepth = 0;
+    private volatile long mLastLatencyMs = -1;
+    private volatile Listener mListener;
+
+    private final Runnable mDeliver = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    public MessageOutbox(Context context, LayerClient layerClient, ParticipantProvider participantProvider) {
+        mLayerClient = layerClient;
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        // Compression stays off: clients that predate the deflate type couldn't show the messages.
+        mTextSender = new MakeMojiTextSender(MAX_NOTIFICATION_LENGTH)
+                .setSendTokens(true);
+        mTextSender.init(context.getApplicationContext(), layerClient, participantProvider);
+        // Messages left by a previous process go out as soon as possible.
+        mExecutor.execute(mDeliver);
+    }
+
+    public MessageOutbox setListener(Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * Clears the listener if it is still the given one.
+     */
+    public void removeListener(Listener listener) {
+        if (mListener == listener) mListener = null;
+    }
+
+    /**
+     * Sets the callback the outbox's TextSender calls before sending each message, as
+     * MessageSender.setCallback does.  It is called on the outbox thread.
+     *
+     * @param callback Callback to receive MessageSender events, or `null`.
+     */
+    public MessageOutbox setMessageSenderCallback(final MessageSender.Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mMessageSenderCallback = callback;
+                mTextSender.setCallback(callback);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Clears the MessageSender callback if it is still the given one, e.g. when the composer
+     * that set it goes away.
+     */
+    public void removeMessageSenderCallback(final MessageSender.Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mMessageSenderCallback != callback) return;
+                mMessageSenderCallback = null;
+                mTextSender.setCallback(null);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of messages not handed to Layer yet.
+     */
+    public int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * Returns the time from composing to handing off the most recently delivered message, or -1
+     * if none was delivered yet.
+     */
+    public long getLastLatencyMs() {
+        return mLastLatencyMs;
+    }
+
+    /**
+     * Stores a composed message and hands it to Layer once authenticated.  May be called from any
+     * thread.
+     *
+     * @param conversation Conversation to send to.
+     * @param html         Serialized MakeMoji text.
+     */
+    public void enqueue(Conversation conversation, String html) {
+        final Entry entry = new Entry(conversation.getId(), html, System.currentTimeMillis());
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                pending().addLast(entry);
+                append(entry);
+                notifyChanged();
+                deliver();
+            }
+        });
+    }
+
+    /**
+     * Drops all undelivered messages, e.g. when the user logs out.
+     */
+    public void clear() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                pending().clear();
+                if (!mFile.delete() && mFile.exists() && Log.isLoggable(Log.ERROR)) {
+                    Log.e("Could not clear outbox");
+                }
+                notifyChanged();
+            }
+        });
+    }
+
+
+    //==============================================================================================
+    // Delivery
+    //==============================================================================================
+
+    @Override
+    public void onAuthenticated(LayerClient layerClient, String userId) {
+        mExecutor.execute(mDeliver);
+    }
+
+    @Override
+    public void onDeauthenticated(LayerClient layerClient) {
+    }
+
+    @Override
+    public void onAuthenticationChallenge(LayerClient layerClient, String nonce) {
+    }
+
+    @Override
+    public void onAuthenticationError(LayerClient layerClient, LayerException e) {
+    }
+
+    /**
+     * Retries messages whose hand-off failed.
+     */
+    @Override
+    public void onConnectionConnected(LayerClient layerClient) {
+        mExecutor.execute(mDeliver);
+    }
+
+    @Override
+    public void onConnectionDisconnected(LayerClient layerClient) {
+    }
+
+    @Override
+    public void onConnectionError(LayerClient layerClient, LayerException e) {
+    }
+
+    /**
+     * Hands pending messages to Layer one at a time, rewriting the outbox file after each.
+     */
+    private void deliver() {
+        Deque<Entry> pending = pending();
+        while (!pending.isEmpty() && mLayerClient.isAuthenticated()) {
+            Entry entry = pending.peekFirst();
+            if (!send(entry)) break;
+            pending.removeFirst();
+            rewrite(pending);
+            mLastLatencyMs = System.currentTimeMillis() - entry.composedAt;
+            notifyChanged();
+            if (Log.isLoggable(Log.VERBOSE)) {
+                Log.v("Outbox handed off a message, " + pending.size() + " pending, latency " + mLastLatencyMs + "ms");
+            }
+        }
+    }
+
+    /**
+     * Returns false if the entry should be retried later.  Entries for missing conversations are
+     * dropped, and refused ones are handed to the Listener.
+     */
+    private boolean send(Entry entry) {
+        Conversation conversation = mLayerClient.getConversation(entry.conversationId);
+        if (conversation == null || conversation.isDeleted()) {
+            if (Log.isLoggable(Log.WARN)) Log.w("Dropping outbox message for missing conversation " + entry.conversationId);
+            return true;
+        }
+        try {
+            mTextSender.setConversation(conversation);
+            if (!mTextSender.requestSend(entry.html)) {
+                if (Log.isLoggable(Log.WARN)) Log.w("Outbox message refused by sender");
+                notifyRefused(entry);
+            }
+            return true;
+        } catch (Exception e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Failed to deliver outbox message, will retry", e);
+            return false;
+        }
+    }
+
+    private void notifyRefused(final Entry entry) {
+        final Listener listener = mListener;
+        if (listener == null) return;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onMessageRefused(entry.conversationId, entry.html);
+            }
+        });
+    }
+
+    private void notifyChanged() {
+        mDepth = pending().size();
+        final Listener listener = mListener;
+        if (listener == null) return;
+        final int depth = mDepth;
+        final long latency = mLastLatencyMs;
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onOutboxChanged(depth, latency);
+            }
+        });
+    }
+
+
+    //==============================================================================================
+    // Persistence
+    //==============================================================================================
+
+    private Deque<Entry> pending() {
+        if (mPending == null) {
+            mPending = new ArrayDeque<Entry>(read());
+            mDepth = mPending.size();
+        }
+        return mPending;
+    }
+
+    private void append(Entry entry) {
+        DataOutputStream out = null;
+        try {
+            FileOutputStream file = new FileOutputStream(mFile, true);
+            out = new DataOutputStream(new BufferedOutputStream(file));
+            write(out, entry);
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Could not store outbox message; it is only kept in memory", e);
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Replaces the outbox file with the given entries via a temporary file, so a crash leaves
+     * either the old or the new contents.
+     */
+    private void rewrite(Deque<Entry> entries) {
+        if (entries.isEmpty()) {
+            mFile.delete();
+            return;
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream file = new FileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(file));
+            for (Entry entry : entries) {
+                write(out, entry);
+            }
+            out.flush();
+            file.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) throw new IOException("Could not rename " + tmp);
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Could not rewrite outbox", e);
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void write(DataOutputStream out, Entry entry) throws IOException {
+        byte[] html = entry.html.getBytes("UTF-8");
+        out.writeUTF(entry.conversationId.toString());
+        out.writeLong(entry.composedAt);
+        out.writeInt(html.length);
+        out.write(html);
+    }
+
+    /**
+     * Reads all complete entries.  An entry cut short by process death, or with a length past the
+     * end of the file, ends the outbox and is truncated so later entries are appended after the
+     * last good one.
+     */
+    private List<Entry> read() {
+        List<Entry> entries = new ArrayList<Entry>();
+        if (!mFile.exists()) return entries;
+        LogInputStream in = null;
+        long good = 0;
+        boolean ended = false;
+        try {
+            in = LogInputStream.open(mFile);
+            while (true) {
+                Uri conversationId = Uri.parse(in.readUTF());
+                long composedAt = in.readLong();
+                byte[] html = in.readBytes();
+                entries.add(new Entry(conversationId, new String(html, "UTF-8"), composedAt));
+                good = in.position();
+            }
+        } catch (EOFException e) {
+            // End of the outbox, or a damaged trailing entry
+            ended = true;
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Could not read outbox", e);
+        } finally {
+            close(in);
+        }
+        if (ended) in.truncate(good);
+        return entries;
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+}
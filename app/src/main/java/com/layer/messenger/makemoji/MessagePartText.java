@@ -0,0 +1,138 @@
+package com.layer.messenger.makemoji;
+
+import com.layer.messenger.util.Log;
+import com.layer.sdk.messaging.MessagePart;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes text MessageParts as UTF-8 straight from the part's data stream into a per-thread
+ * buffer, instead of materializing getData() and copying it again into a String.  Callers that
+ * only need the start of a large body can stop decoding early.  Deflated parts
+ * (MakeMojiCellFactory.MIME_TYPE_DEFLATE) are inflated while decoding.
+ */
+public final class MessagePartText {
+    public final static int UNLIMITED = Integer.MAX_VALUE;
+    private final static int BUFFER_CHARS = 4 * 1024;
+
+    private final static ThreadLocal<char[]> sBuffer = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[BUFFER_CHARS];
+        }
+    };
+
+    private final static ThreadLocal<StringBuilder> sBuilder = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(BUFFER_CHARS);
+        }
+    };
+
+    private MessagePartText() {
+    }
+
+    /**
+     * Decoded text of a MessagePart, possibly cut short.
+     */
+    public static class Excerpt {
+        public final String text;
+        public final boolean truncated;
+
+        Excerpt(String text, boolean truncated) {
+            this.text = text;
+            this.truncated = truncated;
+        }
+    }
+
+    /**
+     * Returns the full text of the MessagePart, or an empty String if its content is not ready.
+     */
+    public static String read(MessagePart part) {
+        return read(part, UNLIMITED).text;
+    }
+
+    /**
+     * Decodes at most maxChars characters of the MessagePart.  A truncated excerpt never ends
+     * inside an HTML tag or entity, so it can be handed to Moji.parseHtml as is.
+     *
+     * @param part     Text MessagePart to decode.
+     * @param maxChars Maximum number of characters to decode, or UNLIMITED.
+     * @return The decoded Excerpt; empty if the part's content is not ready.
+     */
+    public static Excerpt read(MessagePart part, int maxChars) {
+        if (!part.isContentReady()) return new Excerpt("", false);
+        InputStream in = part.getDataStream();
+        if (in == null) return new Excerpt("", false);
+
+        boolean deflated = MakeMojiCellFactory.MIME_TYPE_DEFLATE.equals(part.getMimeType());
+        if (deflated) in = new InflaterInputStream(in);
+
+        char[] buffer = sBuffer.get();
+        StringBuilder builder = sBuilder.get();
+        builder.setLength(0);
+        long size = part.getSize();
+        // The size of a deflated part says little about its text length.
+        if (size > 0 && !deflated) builder.ensureCapacity((int) Math.min(maxChars, size));
+
+        boolean truncated = false;
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(in, "UTF-8");
+            int n;
+            while ((n = reader.read(buffer, 0, Math.min(buffer.length, maxChars - builder.length()))) > 0) {
+                builder.append(buffer, 0, n);
+                if (builder.length() >= maxChars) {
+                    truncated = reader.read() != -1;
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Failed to decode " + part.getId(), e);
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                } else {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        }
+
+        if (truncated) builder.setLength(safeHtmlEnd(builder));
+        String text = builder.toString();
+        // Don't let one huge message pin a huge buffer on this thread.
+        if (builder.capacity() > BUFFER_CHARS * 4) sBuilder.set(new StringBuilder(BUFFER_CHARS));
+        return new Excerpt(text, truncated);
+    }
+
+    /**
+     * Returns a length at which the HTML can be cut without splitting a tag or an entity.
+     */
+    static int safeHtmlEnd(CharSequence html) {
+        int end = html.length();
+        for (int i = end - 1; i >= 0; i--) {
+            char c = html.charAt(i);
+            if (c == '>') break;
+            if (c == '<') {
+                end = i;
+                break;
+            }
+        }
+        for (int i = end - 1; i >= 0; i--) {
+            char c = html.charAt(i);
+            if (c == ';' || c == '>' || Character.isWhitespace(c)) break;
+            if (c == '&') {
+                end = i;
+                break;
+            }
+        }
+        return end;
+    }
+}
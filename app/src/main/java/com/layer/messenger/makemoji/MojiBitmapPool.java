@@ -0,0 +1,95 @@
+package com.layer.messenger.makemoji;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import com.squareup.picasso.Cache;
+
+/**
+ * Process-wide pool of decoded emoji bitmaps, installed as the memory cache of the Picasso
+ * instance MakeMoji spans load through.  Picasso keys include the image URL and the requested
+ * pixel size, so every span showing the same emoji at the same size shares one Bitmap, in
+ * message cells and conversation previews alike.
+ * <p/>
+ * The pool has a hard byte ceiling and gives memory back through trimMemory, which App calls
+ * from onTrimMemory.
+ */
+public class MojiBitmapPool implements Cache {
+    // Share of the app's heap class given to emoji bitmaps: 1/16, e.g. 2MB of a 32MB class.
+    private final static int MEMORY_CLASS_DIVISOR = 16;
+
+    private static MojiBitmapPool sInstance;
+
+    private final LruCache<String, Bitmap> mBitmaps;
+
+    public static synchronized MojiBitmapPool getInstance(Context context) {
+        if (sInstance == null) {
+            ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            sInstance = new MojiBitmapPool(am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVISOR);
+        }
+        return sInstance;
+    }
+
+    MojiBitmapPool(int maxBytes) {
+        mBitmaps = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+    }
+
+    /**
+     * Releases pooled bitmaps according to a ComponentCallbacks2 trim level.
+     *
+     * @param level Level passed to onTrimMemory.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mBitmaps.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mBitmaps.trimToSize(mBitmaps.maxSize() / 2);
+        }
+    }
+
+
+    //==============================================================================================
+    // Picasso Cache
+    //==============================================================================================
+
+    @Override
+    public Bitmap get(String key) {
+        return mBitmaps.get(key);
+    }
+
+    @Override
+    public void set(String key, Bitmap bitmap) {
+        if (key == null || bitmap == null) return;
+        mBitmaps.put(key, bitmap);
+    }
+
+    @Override
+    public int size() {
+        return mBitmaps.size();
+    }
+
+    @Override
+    public int maxSize() {
+        return mBitmaps.maxSize();
+    }
+
+    @Override
+    public void clear() {
+        mBitmaps.evictAll();
+    }
+
+    @Override
+    public void clearKeyUri(String keyPrefix) {
+        for (String key : mBitmaps.snapshot().keySet()) {
+            if (key.startsWith(keyPrefix)) mBitmaps.remove(key);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.layer.messenger.makemoji;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+/**
+ * TextView for MakeMoji bubbles that reports the paint and width it is measured with to a
+ * MojiLayoutCache, so upcoming messages can be measured ahead of time in the same style.  It
+ * lays out, draws and handles touches like a plain TextView.
+ */
+public class MojiBubbleTextView extends TextView {
+    private MojiLayoutCache mLayoutCache;
+    private int mTemplateSlot;
+
+    public MojiBubbleTextView(Context context) {
+        super(context);
+    }
+
+    public MojiBubbleTextView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public MojiBubbleTextView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    /**
+     * Replaces a TextView in its parent with a MojiBubbleTextView carrying the same ID, layout
+     * parameters, padding, and gravity.
+     */
+    public static MojiBubbleTextView replace(TextView original, MojiLayoutCache layoutCache, int templateSlot) {
+        MojiBubbleTextView view = new MojiBubbleTextView(original.getContext());
+        view.setId(original.getId());
+        view.setPadding(original.getPaddingLeft(), original.getPaddingTop(), original.getPaddingRight(), original.getPaddingBottom());
+        view.setGravity(original.getGravity());
+        view.setAutoLinkMask(original.getAutoLinkMask());
+        view.setLinksClickable(original.getLinksClickable());
+        view.setMovementMethod(original.getMovementMethod());
+        view.mLayoutCache = layoutCache;
+        view.mTemplateSlot = templateSlot;
+
+        ViewGroup parent = (ViewGroup) original.getParent();
+        int index = parent.indexOfChild(original);
+        parent.removeViewAt(index);
+        parent.addView(view, index, original.getLayoutParams());
+        return view;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+        int available = MeasureSpec.getSize(widthMeasureSpec) - getCompoundPaddingLeft() - getCompoundPaddingRight();
+        if (mLayoutCache != null && MeasureSpec.getMode(widthMeasureSpec) != MeasureSpec.UNSPECIFIED && available > 0) {
+            mLayoutCache.recordTemplate(mTemplateSlot, getPaint(), available);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.layer.messenger.makemoji;
+
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+
+import com.makemoji.mojilib.MojiSpan;
+import com.makemoji.mojilib.model.MojiModel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The attributes of one MakeMoji emoji (ID, image URL, name, link, and size), as found in the
+ * img tags of MakeMoji HTML.  New MojiSpans are built straight from them, without going through
+ * Moji.parseHtml.
+ */
+public final class MojiEmoji {
+    // What Html.fromHtml puts in the text where a MojiSpan replaces an image
+    final static char PLACEHOLDER = '\uFFFC';
+    final static Pattern IMG_TAG = Pattern.compile("<\\s*img\\b[^>]*>", Pattern.CASE_INSENSITIVE);
+    private final static Pattern ATTRIBUTE = Pattern.compile("(\\w+)\\s*=\\s*\"([^\"]*)\"");
+    private final static Pattern WIDTH = Pattern.compile("(?:^|;)\\s*width\\s*:\\s*(\\d+)");
+    private final static Pattern HEIGHT = Pattern.compile("(?:^|;)\\s*height\\s*:\\s*(\\d+)");
+
+    final String id;
+    final String src;
+    final String name;
+    final String link;
+    final int width;
+    final int height;
+
+    MojiEmoji(String id, String src, String name, String link, int width, int height) {
+        this.id = id;
+        this.src = src;
+        this.name = name;
+        this.link = link;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Returns the emoji of an img tag, or `null` if the tag has no http(s) src.
+     */
+    static MojiEmoji fromTag(String tag) {
+        Map<String, String> attributes = new HashMap<String, String>();
+        Matcher attribute = ATTRIBUTE.matcher(tag);
+        while (attribute.find()) {
+            attributes.put(attribute.group(1).toLowerCase(), attribute.group(2));
+        }
+        String src = attributes.get("src");
+        if (!isImageUrl(src)) return null;
+        String style = attributes.containsKey("style") ? attributes.get("style") : "";
+        return new MojiEmoji(value(attributes, "id"), src, value(attributes, "name"), value(attributes, "link"),
+                dimension(WIDTH, style), dimension(HEIGHT, style));
+    }
+
+    /**
+     * Returns the emoji of every img tag in the HTML, in order.
+     */
+    static List<MojiEmoji> fromHtml(String html) {
+        List<MojiEmoji> emoji = new ArrayList<MojiEmoji>();
+        Matcher img = IMG_TAG.matcher(html);
+        while (img.find()) {
+            MojiEmoji found = fromTag(img.group());
+            if (found != null) emoji.add(found);
+        }
+        return emoji;
+    }
+
+    /**
+     * Returns whether src can be an emoji image: an http or https URL.
+     */
+    static boolean isImageUrl(String src) {
+        return src != null && (src.startsWith("http://") || src.startsWith("https://"));
+    }
+
+    /**
+     * Returns a new MojiSpan for this emoji.  Each occurrence of an emoji in a text needs its own.
+     */
+    MojiSpan newSpan() {
+        MojiModel model = new MojiModel();
+        model.id = parseId(id);
+        model.name = name;
+        model.image_url = src;
+        model.link_url = link.isEmpty() ? null : link;
+        return MojiSpan.fromModel(model, null, null);
+    }
+
+    /**
+     * Appends a placeholder character carrying a new MojiSpan for this emoji.
+     */
+    void appendTo(SpannableStringBuilder builder) {
+        int start = builder.length();
+        builder.append(PLACEHOLDER);
+        builder.setSpan(newSpan(), start, start + 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+    /**
+     * Identifies the emoji regardless of the text it appears in.
+     */
+    String key() {
+        return id + '\n' + src + '\n' + link + '\n' + width + 'x' + height;
+    }
+
+    private static int parseId(String id) {
+        try {
+            return Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String value(Map<String, String> attributes, String name) {
+        String value = attributes.get(name);
+        return value == null ? "" : value;
+    }
+
+    private static int dimension(Pattern pattern, String style) {
+        Matcher matcher = pattern.matcher(style);
+        if (!matcher.find()) return 0;
+        try {
+            return Integer.parseInt(matcher.group(1));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
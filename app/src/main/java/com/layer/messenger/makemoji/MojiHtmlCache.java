@@ -0,0 +1,170 @@
+package com.layer.messenger.makemoji;
+
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.util.LruCache;
+
+import com.makemoji.mojilib.Moji;
+import com.makemoji.mojilib.MojiSpan;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * Process-wide cache of parsed MakeMoji HTML keyed by a SHA-1 digest of the HTML, so identical
+ * bodies (emoji-only replies, stickers, canned responses) are parsed once and their text and
+ * styling are shared between messages and conversations.
+ * <p/>
+ * MojiSpans are not shareable: Moji.setText attaches them to the TextView they are shown in and
+ * sizes them to its text.  Every caller therefore gets its own copy of the cached Spanned, with
+ * new MojiSpans built from the emoji attributes stored with it, so a hit never runs the HTML
+ * parser.  The cached Spanned itself is never handed out.
+ */
+public class MojiHtmlCache {
+    // Share of the VM heap limit used for parsed HTML.
+    private final static int HEAP_DIVISOR = 64;
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static MojiHtmlCache sInstance;
+
+    private final LruCache<String, Entry> mCache;
+
+    /**
+     * A parsed body and the emoji behind each of its MojiSpans, in text order.
+     */
+    private static class Entry {
+        final Spanned spanned;
+        final MojiEmoji[] emoji;
+
+        Entry(Spanned spanned, MojiEmoji[] emoji) {
+            this.spanned = spanned;
+            this.emoji = emoji;
+        }
+    }
+
+    public static synchronized MojiHtmlCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new MojiHtmlCache((int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / HEAP_DIVISOR));
+        }
+        return sInstance;
+    }
+
+    MojiHtmlCache(int maxBytes) {
+        mCache = new LruCache<String, Entry>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Entry value) {
+                int size = MakeMojiCellFactory.TextInfo.sizeOf(value.spanned);
+                for (MojiEmoji emoji : value.emoji) {
+                    size += MakeMojiCellFactory.TextInfo.sizeOf(emoji.key()) + MakeMojiCellFactory.TextInfo.sizeOf(emoji.name);
+                }
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Returns the parsed Spanned for the given HTML, parsing and caching it on a miss.  Safe to
+     * call from any thread.
+     *
+     * @param html MakeMoji HTML as sent by MakeMojiAtlasComposer.
+     * @return A Spanned with MojiSpans of its own, which the caller may attach to one TextView.
+     */
+    public Spanned parse(String html) {
+        if (html == null) html = "";
+        String key = digest(html);
+        Entry entry = mCache.get(key);
+        if (entry == null) {
+            Spanned spanned = Moji.parseHtml(html, null, true).spanned; //also contains size, color.
+            MojiEmoji[] emoji = emoji(html);
+            // Without the emoji of every MojiSpan they cannot be rebuilt; this body isn't cached.
+            if (emoji == null || getEmojiSpans(spanned).length != emoji.length) return spanned;
+            entry = new Entry(spanned, emoji);
+            mCache.put(key, entry);
+        }
+        return copy(entry);
+    }
+
+    /**
+     * Copies the entry's text and styling and gives the copy new MojiSpans.
+     */
+    private static Spanned copy(Entry entry) {
+        SpannableStringBuilder copy = new SpannableStringBuilder(entry.spanned);
+        MojiSpan[] spans = getEmojiSpans(copy);
+        for (int i = 0; i < spans.length; i++) {
+            MojiSpan span = entry.emoji[i].newSpan();
+            int start = copy.getSpanStart(spans[i]);
+            int end = copy.getSpanEnd(spans[i]);
+            int flags = copy.getSpanFlags(spans[i]);
+            copy.removeSpan(spans[i]);
+            copy.setSpan(span, start, end, flags);
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the Spanned's MojiSpans in text order.
+     */
+    private static MojiSpan[] getEmojiSpans(final Spanned spanned) {
+        MojiSpan[] spans = spanned.getSpans(0, spanned.length(), MojiSpan.class);
+        Arrays.sort(spans, new Comparator<MojiSpan>() {
+            @Override
+            public int compare(MojiSpan lhs, MojiSpan rhs) {
+                return spanned.getSpanStart(lhs) - spanned.getSpanStart(rhs);
+            }
+        });
+        return spans;
+    }
+
+    /**
+     * Returns the emoji of the HTML's img tags in order, or `null` if one isn't an emoji.
+     */
+    private static MojiEmoji[] emoji(String html) {
+        List<MojiEmoji> emoji = new ArrayList<MojiEmoji>();
+        Matcher matcher = MojiEmoji.IMG_TAG.matcher(html);
+        while (matcher.find()) {
+            MojiEmoji e = MojiEmoji.fromTag(matcher.group());
+            if (e == null) return null;
+            emoji.add(e);
+        }
+        return emoji.toArray(new MojiEmoji[emoji.size()]);
+    }
+
+    public void trimToSize(int maxBytes) {
+        mCache.trimToSize(maxBytes);
+    }
+
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    public int hitCount() {
+        return mCache.hitCount();
+    }
+
+    public int missCount() {
+        return mCache.missCount();
+    }
+
+    private static String digest(String html) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(html.getBytes("UTF-8"));
+            char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android runtime ships SHA-1; fall back to the content itself.
+            return html;
+        } catch (UnsupportedEncodingException e) {
+            return html;
+        }
+    }
+}
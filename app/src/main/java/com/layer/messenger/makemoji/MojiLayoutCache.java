@@ -0,0 +1,82 @@
+package com.layer.messenger.makemoji;
+
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.LruCache;
+
+/**
+ * Warms text measurement for messages before their bubbles are bound.  Bubbles report their
+ * paint and available width per template slot (e.g. "me" and "them") as they are measured;
+ * background threads then lay out the plain text of upcoming messages once with that template
+ * and discard the result.  The platform keeps measured words (Android 5.0 and later), so the
+ * bubble's own TextView layout on bind reuses them.
+ * <p/>
+ * Layouts themselves are not kept: MojiSpans change size once their images load, and TextView's
+ * layout follows that along with selection and link handling.  Spans are left out of the warm-up
+ * so background threads never touch span objects that a TextView may own.
+ */
+public class MojiLayoutCache {
+    private final static int DEFAULT_MAX_WARMED = 200;
+    private final static int SLOT_COUNT = 2;
+
+    // Keys of content already warmed with the current templates
+    private final LruCache<String, Boolean> mWarmed;
+    private final Template[] mTemplates = new Template[SLOT_COUNT];
+
+    private static class Template {
+        final TextPaint paint;
+        final int width;
+
+        Template(TextPaint paint, int width) {
+            this.paint = paint;
+            this.width = width;
+        }
+    }
+
+    public MojiLayoutCache() {
+        this(DEFAULT_MAX_WARMED);
+    }
+
+    public MojiLayoutCache(int maxWarmed) {
+        mWarmed = new LruCache<String, Boolean>(maxWarmed);
+    }
+
+    /**
+     * Remembers the paint and width last used to measure bubbles in the given slot.
+     */
+    void recordTemplate(int slot, TextPaint paint, int width) {
+        synchronized (mTemplates) {
+            Template current = mTemplates[slot];
+            if (current != null && current.width == width && styleKey(current.paint) == styleKey(paint)) return;
+            mTemplates[slot] = new Template(new TextPaint(paint), width);
+        }
+    }
+
+    /**
+     * Measures the content's text with the slot's last measured template.  Safe to call from any
+     * thread; does nothing until a bubble in that slot has been measured.
+     */
+    public void precompute(int slot, String contentKey, CharSequence content) {
+        Template template;
+        synchronized (mTemplates) {
+            template = mTemplates[slot];
+        }
+        if (template == null) return;
+        String key = contentKey + '|' + template.width + '|' + styleKey(template.paint);
+        if (mWarmed.get(key) != null) return;
+        // TextView defaults: no extra line spacing, font padding included.
+        new StaticLayout(content.toString(), new TextPaint(template.paint), template.width, Layout.Alignment.ALIGN_NORMAL, 1f, 0f, true);
+        mWarmed.put(key, Boolean.TRUE);
+    }
+
+    public void evictAll() {
+        mWarmed.evictAll();
+    }
+
+    private static int styleKey(TextPaint paint) {
+        int key = Float.floatToIntBits(paint.getTextSize());
+        key = 31 * key + (paint.getTypeface() == null ? 0 : paint.getTypeface().hashCode());
+        return key;
+    }
+}
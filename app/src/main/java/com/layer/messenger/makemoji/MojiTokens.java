@@ -0,0 +1,275 @@
+package com.layer.messenger.makemoji;
+
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+
+import com.layer.messenger.util.Log;
+import com.layer.sdk.messaging.Message;
+import com.layer.sdk.messaging.MessagePart;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compact binary form of MakeMoji HTML, sent by MakeMojiTextSender as a second MessagePart next
+ * to the HTML body.  It holds a table of the distinct emoji in the message (ID, image URL, name,
+ * link, and size) followed by runs of plain text and references into that table.  Decoding
+ * appends text runs and, for every emoji reference, a placeholder with a MojiSpan built straight
+ * from the table, so rendering a message never parses HTML.
+ * <p/>
+ * Only unstyled messages are encoded: plain text with paragraphs, line breaks, emoji, and at most
+ * one style shared by the whole message, which cells override with their own.  Anything else
+ * keeps the HTML part as the only form, so the bubble shows what is copied, searched, and
+ * notified.
+ */
+public final class MojiTokens {
+    public final static String MIME_TYPE = "application/x-makemoji-tokens";
+    private final static int VERSION = 1;
+    private final static int RUN_TEXT = 0;
+    private final static int RUN_EMOJI = 1;
+
+    private final static Pattern TAG_NAME = Pattern.compile("^</?\\s*(\\w+)");
+    private final static Pattern STYLE = Pattern.compile("\\bstyle\\s*=\\s*\"([^\"]*)\"", Pattern.CASE_INSENSITIVE);
+    private final static Pattern ENTITY = Pattern.compile("&(#?\\w+);");
+    private final static int MAX_ENTITY_LENGTH = 10;
+
+    private MojiTokens() {
+    }
+
+
+    //==============================================================================================
+    // Encoding
+    //==============================================================================================
+
+    /**
+     * Encodes MakeMoji HTML as tokens.
+     *
+     * @param html HTML from Moji.toHtml().
+     * @return The encoded tokens, or `null` if the HTML has styling or images tokens can't hold.
+     */
+    public static byte[] encode(String html) {
+        List<MojiEmoji> emoji = new ArrayList<MojiEmoji>();
+        Map<String, Integer> emojiIndex = new HashMap<String, Integer>();
+        List<Object> runs = new ArrayList<Object>();
+        StringBuilder text = new StringBuilder();
+        // The one style allowed on p and span tags each
+        String paragraphStyle = null;
+        String spanStyle = null;
+
+        int i = 0;
+        int length = html.length();
+        while (i < length) {
+            char c = html.charAt(i);
+            if (c == '&') {
+                int end = html.indexOf(';', i);
+                Matcher entity = (end < 0 || end - i > MAX_ENTITY_LENGTH) ? null : ENTITY.matcher(html.substring(i, end + 1));
+                if (entity != null && entity.matches()) {
+                    text.append(ConversationSearchIndex.decodeEntity(entity.group(1)));
+                    i = end + 1;
+                    continue;
+                }
+            } else if (c == '<') {
+                int end = html.indexOf('>', i);
+                if (end < 0) break;
+                String tag = html.substring(i, end + 1);
+                i = end + 1;
+                Matcher name = TAG_NAME.matcher(tag);
+                if (!name.find()) continue;
+                String tagName = name.group(1).toLowerCase();
+                boolean closing = tag.startsWith("</");
+                if (tagName.equals("br")) {
+                    text.append('\n');
+                } else if (tagName.equals("p")) {
+                    if (closing) {
+                        text.append('\n');
+                    } else {
+                        paragraphStyle = sameStyle(paragraphStyle, tag);
+                        if (paragraphStyle == null) return null;
+                    }
+                } else if (tagName.equals("span")) {
+                    if (closing) continue;
+                    spanStyle = sameStyle(spanStyle, tag);
+                    if (spanStyle == null) return null;
+                } else if (tagName.equals("img")) {
+                    MojiEmoji parsed = MojiEmoji.fromTag(tag);
+                    if (parsed == null) return null;
+                    Integer index = emojiIndex.get(parsed.key());
+                    if (index == null) {
+                        index = emoji.size();
+                        emoji.add(parsed);
+                        emojiIndex.put(parsed.key(), index);
+                    }
+                    if (text.length() > 0) runs.add(text.toString());
+                    text.setLength(0);
+                    runs.add(index);
+                } else {
+                    // Bold, links, fonts, and the like only show in the HTML.
+                    return null;
+                }
+                continue;
+            }
+            text.append(c);
+            i++;
+        }
+        // Trailing paragraph ends are not part of the text.
+        int end = text.length();
+        while (end > 0 && text.charAt(end - 1) == '\n') end--;
+        text.setLength(end);
+        if (text.length() > 0) runs.add(text.toString());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(html.length() / 2);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            writeVarInt(out, emoji.size());
+            for (MojiEmoji e : emoji) {
+                writeString(out, e.id);
+                writeString(out, e.src);
+                writeString(out, e.name);
+                writeString(out, e.link);
+                writeVarInt(out, e.width);
+                writeVarInt(out, e.height);
+            }
+            writeVarInt(out, runs.size());
+            for (Object run : runs) {
+                if (run instanceof Integer) {
+                    out.writeByte(RUN_EMOJI);
+                    writeVarInt(out, (Integer) run);
+                } else {
+                    out.writeByte(RUN_TEXT);
+                    writeString(out, (String) run);
+                }
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the tag's style attribute, or "" without one, if it matches the style seen so far.
+     *
+     * @param seen Style of earlier tags of the same name, or `null` before the first.
+     * @return The style, or `null` if it differs from seen.
+     */
+    private static String sameStyle(String seen, String tag) {
+        Matcher style = STYLE.matcher(tag);
+        String value = style.find() ? style.group(1).trim() : "";
+        return seen == null || seen.equals(value) ? value : null;
+    }
+
+
+    //==============================================================================================
+    // Decoding
+    //==============================================================================================
+
+    /**
+     * Returns the message's token part if it is downloaded, or `null`.
+     */
+    public static MessagePart getPart(Message message) {
+        List<MessagePart> parts = message.getMessageParts();
+        for (int i = 1; i < parts.size(); i++) {
+            MessagePart part = parts.get(i);
+            if (MIME_TYPE.equals(part.getMimeType())) return part.isContentReady() ? part : null;
+        }
+        return null;
+    }
+
+    /**
+     * Builds the message's text and MojiSpans from its token part.  Safe to call from any thread.
+     *
+     * @return The decoded Spanned, or `null` if the message has no usable token part.
+     */
+    public static Spanned read(Message message) {
+        MessagePart part = getPart(message);
+        if (part == null) return null;
+        InputStream in = part.getDataStream();
+        if (in == null) return null;
+        try {
+            return decode(new DataInputStream(new BufferedInputStream(in)));
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Failed to decode tokens of " + message.getId(), e);
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        }
+    }
+
+    static Spanned decode(DataInputStream in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != VERSION) throw new IOException("Unsupported token version " + version);
+        int emojiCount = readVarInt(in);
+        List<MojiEmoji> emoji = new ArrayList<MojiEmoji>();
+        for (int i = 0; i < emojiCount; i++) {
+            MojiEmoji e = new MojiEmoji(readString(in), readString(in), readString(in), readString(in), readVarInt(in), readVarInt(in));
+            if (!MojiEmoji.isImageUrl(e.src)) throw new IOException("Bad emoji image URL");
+            emoji.add(e);
+        }
+
+        SpannableStringBuilder spanned = new SpannableStringBuilder();
+        int runCount = readVarInt(in);
+        for (int i = 0; i < runCount; i++) {
+            int type = in.readUnsignedByte();
+            if (type == RUN_EMOJI) {
+                int index = readVarInt(in);
+                if (index < 0 || index >= emojiCount) throw new IOException("Bad emoji reference " + index);
+                // A MojiSpan can only be attached once, so every occurrence gets its own.
+                emoji.get(index).appendTo(spanned);
+            } else {
+                spanned.append(readString(in));
+            }
+        }
+        return spanned;
+    }
+
+
+    //==============================================================================================
+    // Primitives
+    //==============================================================================================
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0) throw new IOException("Bad string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
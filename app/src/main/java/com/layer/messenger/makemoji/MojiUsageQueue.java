@@ -0,0 +1,326 @@
+package com.layer.messenger.makemoji;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.SpannableStringBuilder;
+
+import com.layer.messenger.util.Log;
+import com.makemoji.mojilib.MojiInputLayout;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only, on-disk queue of emoji usage events, uploaded to the MakeMoji recents and
+ * analytics backend in batches instead of once per message.  Each event is one emoji sent in a
+ * message, stored as its ID with the image URL, name, and link the SDK needs to rebuild it; the
+ * message text is never stored.  A batch is flushed when MAX_BATCH_SIZE events are queued,
+ * FLUSH_DELAY_MINUTES after the first queued event, or when flush() is called, e.g. when the
+ * app's UI is hidden.  Events survive process death and are uploaded the next time the queue
+ * flushes; clear() drops them, e.g. on logout.
+ */
+public class MojiUsageQueue {
+    private final static String FILE_NAME = "moji_usage.log";
+    final static int MAX_BATCH_SIZE = 20;
+    private final static long FLUSH_DELAY_MINUTES = 15;
+
+    /**
+     * Delivers a batch of usage events.  Replaceable, e.g. with a local stand-in endpoint.
+     */
+    public interface Uploader {
+        /**
+         * Uploads the events on the queue's thread.  Returns false to keep them queued.
+         *
+         * @param emoji Sent emoji, oldest first.
+         */
+        boolean upload(List<MojiEmoji> emoji);
+    }
+
+    /**
+     * Uploads a whole batch through one manualSaveInputToRecentsAndBackend call, with one MojiSpan
+     * per event as the input text.  The text is built on the queue's thread and handed to the
+     * MojiInputLayout on the main thread, and the upload waits for it.  If it times out the batch
+     * stays queued, so an event may be uploaded more than once.
+     */
+    public static class MojiInputLayoutUploader implements Uploader {
+        private final static long TIMEOUT_SECONDS = 30;
+
+        // Main thread only
+        private final MojiInputLayout mInputLayout;
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+        /**
+         * Must be created on the main thread.
+         */
+        public MojiInputLayoutUploader(Context context) {
+            mInputLayout = new MojiInputLayout(context.getApplicationContext());
+        }
+
+        @Override
+        public boolean upload(List<MojiEmoji> emoji) {
+            final SpannableStringBuilder batch = new SpannableStringBuilder();
+            for (MojiEmoji e : emoji) {
+                e.appendTo(batch);
+            }
+            final CountDownLatch done = new CountDownLatch(1);
+            final boolean[] uploaded = new boolean[1];
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mInputLayout.setInputText(batch);
+                        mInputLayout.manualSaveInputToRecentsAndBackend();
+                        mInputLayout.setInputText(new SpannableStringBuilder());
+                        uploaded[0] = true;
+                    } catch (Exception e) {
+                        if (Log.isLoggable(Log.ERROR)) Log.e("Failed to upload emoji usage", e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            try {
+                if (!done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return uploaded[0];
+        }
+    }
+
+    private final File mFile;
+    private final Uploader mUploader;
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "MojiUsage");
+        }
+    });
+
+    // Executor thread only
+    private int mQueued = -1;
+    private ScheduledFuture<?> mScheduledFlush;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            mScheduledFlush = null;
+            flushNow();
+        }
+    };
+
+    public MojiUsageQueue(Context context, Uploader uploader) {
+        this(new File(context.getFilesDir(), FILE_NAME), uploader);
+    }
+
+    MojiUsageQueue(File file, Uploader uploader) {
+        mFile = file;
+        mUploader = uploader;
+        // Events left by a previous process get their timed flush.
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (queued() > 0) scheduleFlush();
+            }
+        });
+    }
+
+    /**
+     * Queues the emoji of a sent message from its HTML.  Messages without emoji queue nothing.
+     * May be called from any thread.
+     */
+    public void add(final String html) {
+        if (html == null || html.isEmpty()) return;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<MojiEmoji> emoji = MojiEmoji.fromHtml(html);
+                if (emoji.isEmpty()) return;
+                int queued = queued();
+                if (!append(emoji)) return;
+                mQueued = queued + emoji.size();
+                if (mQueued >= MAX_BATCH_SIZE) {
+                    flushNow();
+                } else {
+                    scheduleFlush();
+                }
+            }
+        });
+    }
+
+    /**
+     * Uploads all queued events in the background.
+     */
+    public void flush() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flushNow();
+            }
+        });
+    }
+
+    /**
+     * Drops all queued events without uploading them.
+     */
+    public void clear() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mScheduledFlush != null) {
+                    mScheduledFlush.cancel(false);
+                    mScheduledFlush = null;
+                }
+                if (!mFile.delete() && mFile.exists() && Log.isLoggable(Log.ERROR)) {
+                    Log.e("Could not clear emoji usage queue");
+                }
+                mQueued = 0;
+            }
+        });
+    }
+
+    private void scheduleFlush() {
+        if (mScheduledFlush != null) return;
+        mScheduledFlush = mExecutor.schedule(mFlush, FLUSH_DELAY_MINUTES, TimeUnit.MINUTES);
+    }
+
+    private void flushNow() {
+        if (mScheduledFlush != null) {
+            mScheduledFlush.cancel(false);
+            mScheduledFlush = null;
+        }
+        List<MojiEmoji> events = read();
+        if (events.isEmpty()) {
+            mQueued = 0;
+            return;
+        }
+        boolean uploaded;
+        try {
+            uploaded = mUploader.upload(events);
+        } catch (Exception e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Failed to upload " + events.size() + " emoji usage events", e);
+            uploaded = false;
+        }
+        if (!uploaded) {
+            scheduleFlush();
+            return;
+        }
+        if (Log.isLoggable(Log.VERBOSE)) Log.v("Uploaded " + events.size() + " emoji usage events");
+        if (!mFile.delete() && mFile.exists() && Log.isLoggable(Log.ERROR)) {
+            Log.e("Could not clear emoji usage queue");
+        }
+        mQueued = 0;
+    }
+
+
+    //==============================================================================================
+    // Persistence
+    //==============================================================================================
+
+    private int queued() {
+        if (mQueued < 0) mQueued = read().size();
+        return mQueued;
+    }
+
+    /**
+     * Appends one length-prefixed record per emoji.
+     */
+    private boolean append(List<MojiEmoji> emoji) {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(mFile, true));
+            for (MojiEmoji e : emoji) {
+                byte[] bytes = toRecord(e);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.getFD().sync();
+            return true;
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Could not queue emoji usage event", e);
+            return false;
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Reads all complete records.  A record cut short by process death, or with a length past the
+     * end of the file, ends the queue and is truncated so later records are appended after the
+     * last good one.
+     */
+    private List<MojiEmoji> read() {
+        List<MojiEmoji> events = new ArrayList<MojiEmoji>();
+        if (!mFile.exists()) return events;
+        LogInputStream in = null;
+        long good = 0;
+        boolean ended = false;
+        try {
+            in = LogInputStream.open(mFile);
+            while (true) {
+                events.add(fromRecord(in.readBytes()));
+                good = in.position();
+            }
+        } catch (EOFException e) {
+            // End of the queue, or a damaged trailing record
+            ended = true;
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Could not read emoji usage queue", e);
+        } finally {
+            close(in);
+        }
+        if (ended) in.truncate(good);
+        return events;
+    }
+
+    private static byte[] toRecord(MojiEmoji emoji) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(emoji.id);
+        out.writeUTF(emoji.src);
+        out.writeUTF(emoji.name);
+        out.writeUTF(emoji.link);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws EOFException if the record is incomplete.
+     */
+    private static MojiEmoji fromRecord(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        return new MojiEmoji(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), 0, 0);
+    }
+
+    private static void close(java.io.Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+}
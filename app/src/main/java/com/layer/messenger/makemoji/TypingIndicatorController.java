@@ -0,0 +1,119 @@
+package com.layer.messenger.makemoji;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.layer.sdk.listeners.LayerTypingIndicatorListener.TypingIndicator;
+import com.layer.sdk.messaging.Conversation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns composer edits into a few typing indicator events per typing session instead of one per
+ * keystroke: STARTED when typing begins, PAUSED after an idle timeout, and FINISHED when the text
+ * is cleared or sent.  A long session re-sends STARTED now and then so receivers keep showing it.
+ * Events to a conversation are spaced at least MIN_INTERVAL_MS apart; a rate-limited change is
+ * sent once the interval passes, and only if it is still current.  FINISHED is never delayed.
+ * <p/>
+ * Must be used on the main thread.
+ */
+public class TypingIndicatorController {
+    private final static long IDLE_TIMEOUT_MS = 3000;
+    private final static long REFRESH_MS = 8000;
+    private final static long MIN_INTERVAL_MS = 1000;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<Uri, Long> mLastSentAt = new HashMap<Uri, Long>();
+
+    private Conversation mConversation;
+    private TypingIndicator mSent = TypingIndicator.FINISHED;
+    private TypingIndicator mDesired = TypingIndicator.FINISHED;
+    private long mStartedSentAt;
+    private boolean mFlushScheduled = false;
+
+    private final Runnable mIdle = new Runnable() {
+        @Override
+        public void run() {
+            if (mDesired != TypingIndicator.STARTED) return;
+            mDesired = TypingIndicator.PAUSED;
+            flush();
+        }
+    };
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            flush();
+        }
+    };
+
+    /**
+     * Sets the conversation to send typing indicators to, finishing any session in the previous
+     * one.
+     */
+    public TypingIndicatorController setConversation(Conversation conversation) {
+        if (conversation == mConversation) return this;
+        finish();
+        mConversation = conversation;
+        mSent = TypingIndicator.FINISHED;
+        mDesired = TypingIndicator.FINISHED;
+        return this;
+    }
+
+    /**
+     * Call after every composer edit.
+     *
+     * @param hasText Whether the composer contains text after the edit.
+     */
+    public void onTextChanged(boolean hasText) {
+        if (!hasText) {
+            finish();
+            return;
+        }
+        mDesired = TypingIndicator.STARTED;
+        mHandler.removeCallbacks(mIdle);
+        mHandler.postDelayed(mIdle, IDLE_TIMEOUT_MS);
+        flush();
+    }
+
+    /**
+     * Ends the typing session, e.g. when the composed message is sent or the composer goes away.
+     */
+    public void finish() {
+        mHandler.removeCallbacks(mIdle);
+        mHandler.removeCallbacks(mFlush);
+        mFlushScheduled = false;
+        mDesired = TypingIndicator.FINISHED;
+        flush();
+    }
+
+    private void flush() {
+        if (mConversation == null || mConversation.isDeleted()) return;
+        long now = SystemClock.elapsedRealtime();
+        if (mDesired == mSent) {
+            // Only a long STARTED session is worth repeating.
+            if (mSent != TypingIndicator.STARTED || now - mStartedSentAt < REFRESH_MS) return;
+        }
+
+        if (mDesired != TypingIndicator.FINISHED) {
+            Long lastSentAt = mLastSentAt.get(mConversation.getId());
+            long wait = lastSentAt == null ? 0 : lastSentAt + MIN_INTERVAL_MS - now;
+            if (wait > 0) {
+                if (!mFlushScheduled) {
+                    mFlushScheduled = true;
+                    mHandler.postDelayed(mFlush, wait);
+                }
+                return;
+            }
+        }
+
+        mConversation.send(mDesired);
+        mSent = mDesired;
+        mLastSentAt.put(mConversation.getId(), now);
+        if (mSent == TypingIndicator.STARTED) mStartedSentAt = now;
+    }
+}
@@ -0,0 +1,211 @@
+package com.layer.messenger.util;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.layer.atlas.provider.ParticipantProvider;
+import com.layer.atlas.util.Util;
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.changes.LayerChange;
+import com.layer.sdk.changes.LayerChangeEvent;
+import com.layer.sdk.listeners.LayerChangeEventListener;
+import com.layer.sdk.messaging.Conversation;
+import com.layer.sdk.messaging.LayerObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches conversation titles by conversation ID, so each title resolves its participants once.
+ * A title is dropped when its conversation's metadata or participants change, when the
+ * conversation is deleted, and when any of its participants is updated by the
+ * ParticipantProvider; registered Listeners are then told to show the new title.  At most
+ * MAX_TITLES titles are kept, least recently used first out.
+ */
+public class ConversationTitleCache implements LayerChangeEventListener {
+    private final static int MAX_TITLES = 500;
+
+    public interface Listener {
+        /**
+         * Called on the main thread after the titles of the given conversations were dropped.
+         */
+        void onTitlesInvalidated(Collection<Uri> conversationIds);
+    }
+
+    // Guarded by this
+    private final Map<Uri, String> mTitles = new LinkedHashMap<Uri, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Uri, String> eldest) {
+            if (size() <= MAX_TITLES) return false;
+            unlink(eldest.getKey());
+            return true;
+        }
+    };
+    private final Map<String, Set<Uri>> mConversationsByParticipant = new HashMap<String, Set<Uri>>();
+    private final Map<Uri, List<String>> mParticipantsByConversation = new HashMap<Uri, List<String>>();
+    // Bumped on every invalidation, so a title computed before one isn't stored
+    private int mVersion = 0;
+
+    // Main thread only
+    private final Set<Listener> mListeners = new HashSet<Listener>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Registers a Listener.  Must be called on the main thread.
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Unregisters a Listener.  Must be called on the main thread.
+     */
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Returns the title of the given conversation, computing and caching it if needed.
+     *
+     * @see Util#getConversationTitle(LayerClient, ParticipantProvider, Conversation)
+     */
+    public String get(LayerClient layerClient, ParticipantProvider participantProvider, Conversation conversation) {
+        Uri id = conversation.getId();
+        int version;
+        synchronized (this) {
+            String title = mTitles.get(id);
+            if (title != null) return title;
+            version = mVersion;
+        }
+        String title = Util.getConversationTitle(layerClient, participantProvider, conversation);
+        if (title == null) return null;
+        List<String> participantIds = new ArrayList<String>(conversation.getParticipants());
+        synchronized (this) {
+            // Invalidated while computing; the title may be stale, so it is only returned.
+            if (mVersion != version) return title;
+            unlink(id);
+            mTitles.put(id, title);
+            mParticipantsByConversation.put(id, participantIds);
+            for (String participantId : participantIds) {
+                Set<Uri> conversationIds = mConversationsByParticipant.get(participantId);
+                if (conversationIds == null) {
+                    conversationIds = new HashSet<Uri>();
+                    mConversationsByParticipant.put(participantId, conversationIds);
+                }
+                conversationIds.add(id);
+            }
+        }
+        return title;
+    }
+
+    /**
+     * Returns the cached title of the conversation with the given ID, or `null`.
+     */
+    public synchronized String peek(Uri conversationId) {
+        return mTitles.get(conversationId);
+    }
+
+    public void invalidate(Uri conversationId) {
+        synchronized (this) {
+            drop(conversationId);
+        }
+        notifyInvalidated(Collections.singletonList(conversationId));
+    }
+
+    /**
+     * Drops the titles of every cached conversation that includes one of the given participants.
+     *
+     * @param participantIds IDs of participants whose names or details changed.
+     */
+    public void onParticipantsUpdated(Collection<String> participantIds) {
+        List<Uri> invalidated = new ArrayList<Uri>();
+        synchronized (this) {
+            for (String participantId : participantIds) {
+                Set<Uri> conversationIds = mConversationsByParticipant.get(participantId);
+                if (conversationIds == null) continue;
+                invalidated.addAll(conversationIds);
+            }
+            for (Uri conversationId : invalidated) drop(conversationId);
+        }
+        if (!invalidated.isEmpty()) notifyInvalidated(invalidated);
+    }
+
+    public synchronized void evictAll() {
+        mTitles.clear();
+        mConversationsByParticipant.clear();
+        mParticipantsByConversation.clear();
+        // Titles being computed now belong to the previous user.
+        mVersion++;
+    }
+
+    @Override
+    public void onChangeEvent(LayerChangeEvent event) {
+        List<Uri> invalidated = new ArrayList<Uri>();
+        synchronized (this) {
+            for (LayerChange change : event.getChanges()) {
+                if (change.getObjectType() != LayerObject.Type.CONVERSATION) continue;
+                if (!changesTitle(change)) continue;
+                Uri conversationId = ((Conversation) change.getObject()).getId();
+                drop(conversationId);
+                invalidated.add(conversationId);
+            }
+        }
+        if (!invalidated.isEmpty()) notifyInvalidated(invalidated);
+    }
+
+    /**
+     * Returns whether a conversation change can change its title: a deletion, or an update of
+     * its metadata (which may hold a title) or participants.
+     */
+    private static boolean changesTitle(LayerChange change) {
+        switch (change.getChangeType()) {
+            case DELETE:
+                return true;
+            case UPDATE:
+                String attribute = change.getAttributeName();
+                return attribute == null || attribute.startsWith("metadata") || attribute.equals("participants");
+            default:
+                return false;
+        }
+    }
+
+    // Guarded by this
+    private void drop(Uri conversationId) {
+        mTitles.remove(conversationId);
+        unlink(conversationId);
+        mVersion++;
+    }
+
+    /**
+     * Removes the conversation from the participant index.  Guarded by this.
+     */
+    private void unlink(Uri conversationId) {
+        List<String> participantIds = mParticipantsByConversation.remove(conversationId);
+        if (participantIds == null) return;
+        for (String participantId : participantIds) {
+            Set<Uri> conversationIds = mConversationsByParticipant.get(participantId);
+            if (conversationIds == null) continue;
+            conversationIds.remove(conversationId);
+            if (conversationIds.isEmpty()) mConversationsByParticipant.remove(participantId);
+        }
+    }
+
+    private void notifyInvalidated(final Collection<Uri> conversationIds) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Listener listener : mListeners) {
+                    listener.onTitlesInvalidated(conversationIds);
+                }
+            }
+        });
+    }
+}
@@ -94,20 +94,23 @@ public class DemoParticipantProvider implements ParticipantProvider {
 
     /**
      * Adds the provided Participants to this ParticipantProvider, saves the participants, and
-     * returns the list of added participant IDs.
+     * alerts listeners with the IDs of participants that were added or whose name or avatar
+     * changed.
      */
     private DemoParticipantProvider setParticipants(Collection<DemoParticipant> participants) {
-        List<String> newParticipantIds = new ArrayList<>(participants.size());
+        List<String> updatedParticipantIds = new ArrayList<>(participants.size());
         synchronized (mParticipantMap) {
             for (DemoParticipant participant : participants) {
                 String participantId = participant.getId();
-                if (!mParticipantMap.containsKey(participantId))
-                    newParticipantIds.add(participantId);
+                DemoParticipant existing = mParticipantMap.get(participantId);
+                if (existing == null || !sameDetails(existing, participant)) {
+                    updatedParticipantIds.add(participantId);
+                }
                 mParticipantMap.put(participantId, participant);
             }
             save();
         }
-        alertParticipantsUpdated(newParticipantIds);
+        alertParticipantsUpdated(updatedParticipantIds);
         return this;
     }
 
@@ -228,18 +231,23 @@ public class DemoParticipantProvider implements ParticipantProvider {
         return participantsArray;
     }
 
-    private DemoParticipantProvider registerParticipantListener(ParticipantListener participantListener) {
+    public DemoParticipantProvider registerParticipantListener(ParticipantListener participantListener) {
         if (!mParticipantListeners.contains(participantListener)) {
             mParticipantListeners.add(participantListener);
         }
         return this;
     }
 
-    private DemoParticipantProvider unregisterParticipantListener(ParticipantListener participantListener) {
+    public DemoParticipantProvider unregisterParticipantListener(ParticipantListener participantListener) {
         mParticipantListeners.remove(participantListener);
         return this;
     }
 
+    private static boolean sameDetails(Participant a, Participant b) {
+        return (a.getName() == null ? b.getName() == null : a.getName().equals(b.getName()))
+                && (a.getAvatarUrl() == null ? b.getAvatarUrl() == null : a.getAvatarUrl().equals(b.getAvatarUrl()));
+    }
+
     private void alertParticipantsUpdated(Collection<String> updatedParticipantIds) {
         for (ParticipantListener listener : mParticipantListeners) {
             listener.onParticipantsUpdated(this, updatedParticipantIds);
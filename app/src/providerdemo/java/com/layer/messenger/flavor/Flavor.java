@@ -8,6 +8,8 @@ import com.layer.messenger.util.AuthenticationProvider;
 import com.layer.messenger.util.Log;
 import com.layer.sdk.LayerClient;
 
+import java.util.Collection;
+
 public class Flavor implements App.Flavor {
     // Set your Layer App ID from your Layer developer dashboard to bypass the QR-Code scanner.
     private final static String LAYER_APP_ID = null;
@@ -75,7 +77,13 @@ public class Flavor implements App.Flavor {
 
     @Override
     public ParticipantProvider generateParticipantProvider(Context context, AuthenticationProvider authenticationProvider) {
-        return new DemoParticipantProvider(context).setLayerAppId(getLayerAppId());
+        return new DemoParticipantProvider(context).setLayerAppId(getLayerAppId())
+                .registerParticipantListener(new DemoParticipantProvider.ParticipantListener() {
+                    @Override
+                    public void onParticipantsUpdated(DemoParticipantProvider provider, Collection<String> updatedParticipantIds) {
+                        if (!updatedParticipantIds.isEmpty()) App.onParticipantsUpdated(updatedParticipantIds);
+                    }
+                });
     }
 
     @Override
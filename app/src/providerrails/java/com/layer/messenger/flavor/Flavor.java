@@ -10,6 +10,8 @@ import com.layer.messenger.util.AuthenticationProvider;
 import com.layer.messenger.util.Log;
 import com.layer.sdk.LayerClient;
 
+import java.util.Collection;
+
 public class Flavor implements App.Flavor {
     // Set your Layer App ID from your Layer Developer Dashboard.
     public final static String LAYER_APP_ID = null;
@@ -41,6 +43,12 @@ public class Flavor implements App.Flavor {
 
     @Override
     public ParticipantProvider generateParticipantProvider(Context context, AuthenticationProvider authenticationProvider) {
-        return new RailsParticipantProvider(context).setAuthenticationProvider(authenticationProvider);
+        return new RailsParticipantProvider(context).setAuthenticationProvider(authenticationProvider)
+                .registerParticipantListener(new RailsParticipantProvider.ParticipantListener() {
+                    @Override
+                    public void onParticipantsUpdated(RailsParticipantProvider provider, Collection<String> updatedParticipantIds) {
+                        if (!updatedParticipantIds.isEmpty()) App.onParticipantsUpdated(updatedParticipantIds);
+                    }
+                });
     }
 }
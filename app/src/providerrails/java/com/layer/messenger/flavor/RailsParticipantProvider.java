@@ -92,21 +92,23 @@ public class RailsParticipantProvider implements ParticipantProvider {
 
     /**
      * Adds the provided Participants to this ParticipantProvider, saves the participants, and
-     * returns the list of added participant IDs.
+     * alerts listeners with the IDs of participants that were added or whose name or avatar
+     * changed.
      */
     private RailsParticipantProvider setParticipants(Collection<RailsParticipant> participants) {
-        List<String> newParticipantIds = new ArrayList<>(participants.size());
+        List<String> updatedParticipantIds = new ArrayList<>(participants.size());
         synchronized (mParticipantMap) {
             for (RailsParticipant participant : participants) {
                 String participantId = participant.getId();
-                if (!mParticipantMap.containsKey(participantId)) {
-                    newParticipantIds.add(participantId);
+                RailsParticipant existing = mParticipantMap.get(participantId);
+                if (existing == null || !sameDetails(existing, participant)) {
+                    updatedParticipantIds.add(participantId);
                 }
                 mParticipantMap.put(participantId, participant);
             }
             save();
         }
-        alertParticipantsUpdated(newParticipantIds);
+        alertParticipantsUpdated(updatedParticipantIds);
         return this;
     }
 
@@ -252,18 +254,23 @@ public class RailsParticipantProvider implements ParticipantProvider {
         return participantsArray;
     }
 
-    private RailsParticipantProvider registerParticipantListener(ParticipantListener participantListener) {
+    public RailsParticipantProvider registerParticipantListener(ParticipantListener participantListener) {
         if (!mParticipantListeners.contains(participantListener)) {
             mParticipantListeners.add(participantListener);
         }
         return this;
     }
 
-    private RailsParticipantProvider unregisterParticipantListener(ParticipantListener participantListener) {
+    public RailsParticipantProvider unregisterParticipantListener(ParticipantListener participantListener) {
         mParticipantListeners.remove(participantListener);
         return this;
     }
 
+    private static boolean sameDetails(Participant a, Participant b) {
+        return (a.getName() == null ? b.getName() == null : a.getName().equals(b.getName()))
+                && (a.getAvatarUrl() == null ? b.getAvatarUrl() == null : a.getAvatarUrl().equals(b.getAvatarUrl()));
+    }
+
     private void alertParticipantsUpdated(Collection<String> updatedParticipantIds) {
         for (ParticipantListener listener : mParticipantListeners) {
             listener.onParticipantsUpdated(this, updatedParticipantIds);